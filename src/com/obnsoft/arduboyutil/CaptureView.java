@@ -19,6 +19,7 @@ package com.obnsoft.arduboyutil;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Calendar;
 
 import com.obnsoft.arduboyutil.MyAsyncTaskWithDialog.Result;
@@ -143,13 +144,16 @@ public class CaptureView extends View implements OnClickListener {
         }
     }
 
-    public synchronized void appendData(byte[] data) {
+    public void appendData(byte[] data) {
+        appendData(ByteBuffer.wrap(data));
+    }
+
+    public synchronized void appendData(ByteBuffer data) {
         if (mBitmapBack.isRecycled()) {
             return;
         }
-        int dataSize = data.length;
-        for (int i = 0; i < dataSize; i++) {
-            int val = data[i];
+        while (data.hasRemaining()) {
+            int val = data.get();
             for (int y = 0; y < BITS_PER_BYTE; y++) {
                 mBitmapBack.setPixel(mDrawX, mDrawY + y, Color.WHITE * (val & 1));
                 val >>= 1;
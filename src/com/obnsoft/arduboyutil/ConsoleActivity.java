@@ -17,10 +17,11 @@
 
 package com.obnsoft.arduboyutil;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import com.physicaloid.lib.Physicaloid;
-import com.physicaloid.lib.usb.driver.uart.ReadListener;
+import com.physicaloid.lib.usb.driver.uart.ReadDataListener;
 import com.physicaloid.lib.usb.driver.uart.UartConfig;
 
 import android.app.Activity;
@@ -62,7 +63,7 @@ public class ConsoleActivity extends Activity {
     private static final int BYTE_CODE_MAX = '~'; // 0x7e
     private static final byte[][] NEWLINE_CHAR_LIST = {
             new byte[] { '\r' }, new byte[] { '\n' }, new byte[] { '\r', '\n' } };
-    private static final String CONSOLE_CHARSET = "US-ASCII";
+    private static final Charset CONSOLE_CHARSET = Charset.forName("US-ASCII");
     private static final int CONSOLE_MAX_LEN = 1024 * 16;
 
     private MyApplication mApp;
@@ -225,19 +226,13 @@ public class ConsoleActivity extends Activity {
         } else if (!mPhysicaloid.open(config)) {
             return false; // open failed.
         }
-        return mPhysicaloid.addReadListener(new ReadListener() {
+        return mPhysicaloid.addReadDataListener(new ReadDataListener() {
             @Override
-            public void onRead(int size) {
-                byte[] buf = new byte[size];
-                mPhysicaloid.read(buf, size);
+            public void onReadData(ByteBuffer data) {
                 if (mIsScreenCapture) {
-                    mCaptureView.appendData(buf);
+                    mCaptureView.appendData(data);
                 } else {
-                    try {
-                        appendMessage(new String(buf, CONSOLE_CHARSET));
-                    } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                    }
+                    appendMessage(CONSOLE_CHARSET.decode(data).toString());
                 }
             }
         });
@@ -23,9 +23,10 @@ import java.util.ArrayList;
 import java.util.Locale;
 
 import com.obnsoft.arduboyutil.MyAsyncTaskWithDialog.Result;
+import com.physicaloid.lib.BootloaderWatcher;
 import com.physicaloid.lib.Boards;
 import com.physicaloid.lib.Physicaloid;
-import com.physicaloid.lib.Physicaloid.ProcessCallBack;
+import com.physicaloid.lib.Physicaloid.PageStatisticsCallBack;
 import com.physicaloid.lib.programmer.avr.AvrTask;
 import com.physicaloid.lib.programmer.avr.AvrTask.Op;
 import com.physicaloid.lib.programmer.avr.TransferErrors;
@@ -37,6 +38,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.net.Uri;
 import android.os.Bundle;
@@ -73,7 +75,8 @@ public class MainActivity extends Activity {
     private MyApplication   mApp;
     private Physicaloid     mPhysicaloid;
     private Handler         mHandler;
-    private Runnable        mRunnbaleWaitRestart;
+    private BootloaderWatcher mBootloaderWatcher;
+    private ArrayList<AvrTask> mPreparedTasks;
     private boolean         mIsDownloadEepromSpecified = false;
     private boolean         mIsUploadEepromSpecified = false;
     private boolean         mIsExecuting = false;
@@ -167,6 +170,7 @@ public class MainActivity extends Activity {
         registerReceiver(mUsbReceiver, MyApplication.USB_RECEIVER_FILTER);
 
         mHandler = new Handler();
+        mBootloaderWatcher = new BootloaderWatcher(mHandler);
     }
 
     @Override
@@ -211,6 +215,7 @@ public class MainActivity extends Activity {
 
     @Override
     protected void onDestroy() {
+        mBootloaderWatcher.stop();
         unregisterReceiver(mUsbReceiver);
         mPhysicaloid.clearReadListener();
         mPhysicaloid.close();
@@ -236,20 +241,39 @@ public class MainActivity extends Activity {
 
     public void onClickExecute(View v) {
         if (mPhysicaloid.isOpened() || mPhysicaloid.open()) {
+            final ArrayList<AvrTask> tasks = createTasks();
+            if (tasks == null) {
+                Utils.showToast(this, R.string.messageExecutingFileNotFound);
+                return;
+            }
             mApp.acquireWakeLock();
             mIsExecuting = true;
+            mPreparedTasks = tasks;
+            mPhysicaloid.setDeviceSerial(mPhysicaloid.getSerial());
+            new Thread(new Runnable() { // Decode images while Arduboy is restarting
+                @Override
+                public void run() {
+                    for (AvrTask task : tasks) {
+                        task.prepare();
+                    }
+                }
+            }).start();
             mPhysicaloid.setBaudrate(BAUD_RATE_SWITCH_AVR); // Switch Arduboy to AVR mode
             mPhysicaloid.close();
-            mRunnbaleWaitRestart = new Runnable() {
+            mBootloaderWatcher.start(new BootloaderWatcher.Listener() {
                 @Override
-                public void run() {
+                public void onBootloaderFound(UsbDevice device, long latencyNanos) {
+                    executeOperations();
+                }
+                @Override
+                public void onTimeout() {
                     mApp.releaseWakeLock();
                     mIsExecuting = false;
+                    mPreparedTasks = null;
                     Utils.showToast(MainActivity.this, R.string.messageDeviceSwitchFailed);
                     controlUiAvalability();
                 }
-            };
-            mHandler.postDelayed(mRunnbaleWaitRestart, WAIT_RESTART_TIMEOUT);
+            }, WAIT_RESTART_TIMEOUT);
         } else {
             Utils.showToast(this, R.string.messageDeviceOpenFailed);
             mIsExecuting = false;
@@ -262,10 +286,7 @@ public class MainActivity extends Activity {
     private void handleIntent(Intent intent) {
         String action = intent.getAction();
         if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
-            if (mIsExecuting) {
-                mHandler.removeCallbacks(mRunnbaleWaitRestart);
-                executeOperations();
-            }
+            mBootloaderWatcher.notifyAttached();
         } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
             mPhysicaloid.clearReadListener();
             mPhysicaloid.close();
@@ -346,18 +367,25 @@ public class MainActivity extends Activity {
         }
     }
 
-    private void executeOperations() {
-        final ArrayList<AvrTask> operations = new ArrayList<AvrTask>();
+    private ArrayList<AvrTask> createTasks() {
+        ArrayList<AvrTask> tasks = new ArrayList<AvrTask>();
         try {
             for (OperationInfo info : mOperationInfos) {
                 if (info.mToggleButton.isChecked()) {
-                    operations.add(new AvrTask(
-                            info.mOperation, new File(info.mFilePath)));
+                    tasks.add(new AvrTask(info.mOperation, new File(info.mFilePath)));
                 }
             }
         } catch (FileNotFoundException e) {
             e.printStackTrace();
-            Utils.showToast(MainActivity.this, R.string.messageExecutingFileNotFound);
+            return null;
+        }
+        return tasks;
+    }
+
+    private void executeOperations() {
+        final ArrayList<AvrTask> operations = mPreparedTasks;
+        mPreparedTasks = null;
+        if (operations == null) {
             mApp.releaseWakeLock();
             mIsExecuting = false;
             controlUiAvalability();
@@ -367,10 +395,12 @@ public class MainActivity extends Activity {
         MyAsyncTaskWithDialog.ITask task = new MyAsyncTaskWithDialog.ITask() {
             private AvrTask.Op  mCurrentOperation = null;
             private String      mErrorMessage = null;
+            private int         mWrittenPages = -1;
+            private int         mSkippedPages = 0;
 
             @Override
             public Boolean task(final ProgressDialog dialog) {
-                ProcessCallBack callback = new ProcessCallBack() {
+                PageStatisticsCallBack callback = new PageStatisticsCallBack() {
                     @Override
                     public void onPreProcess() {
                         dialog.setIndeterminate(false);
@@ -410,6 +440,14 @@ public class MainActivity extends Activity {
                         }
                     }
                     @Override
+                    public void onPageStatistics(AvrTask.Op operation, int written,
+                            int skipped) {
+                        if (operation == AvrTask.Op.UPLOAD_FLASH) {
+                            mWrittenPages = written;
+                            mSkippedPages = skipped;
+                        }
+                    }
+                    @Override
                     public void onCancel() {
                         // do nothing
                     }
@@ -465,7 +503,13 @@ public class MainActivity extends Activity {
                         commitLastFlashName(baseName);
                         setDefaultOperationFilePath(baseName);
                     }
-                    Utils.showToast(MainActivity.this, R.string.messageExecutingCompleted);
+                    if (mWrittenPages >= 0) {
+                        Utils.showToast(MainActivity.this, String.format(
+                                getString(R.string.messageExecutingCompletedPages),
+                                mWrittenPages, mSkippedPages));
+                    } else {
+                        Utils.showToast(MainActivity.this, R.string.messageExecutingCompleted);
+                    }
                     break;
                 default:
                 case FAILED:
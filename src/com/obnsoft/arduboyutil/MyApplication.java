@@ -18,6 +18,7 @@
 package com.obnsoft.arduboyutil;
 
 import com.physicaloid.lib.Physicaloid;
+import com.physicaloid.lib.programmer.avr.ProgramConfig;
 
 import android.app.Application;
 import android.content.IntentFilter;
@@ -25,12 +26,16 @@ import android.hardware.usb.UsbManager;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 
+import java.io.File;
+
 public class MyApplication extends Application {
 
     public static final IntentFilter USB_RECEIVER_FILTER =
             new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED);
 
     private static final String TAG = "ArduboyUtility";
+    private static final int PIPELINE_DEPTH = 4;
+    private static final String FINGERPRINT_CACHE_FILE = "fingerprints.properties";
 
     private Physicaloid mPhysicaloid;
     private WakeLock    mWakeLock;
@@ -40,6 +45,11 @@ public class MyApplication extends Application {
         super.onCreate();
         Utils.generateFolders();
         mPhysicaloid = new Physicaloid(getApplicationContext());
+        ProgramConfig programConfig = new ProgramConfig(true, PIPELINE_DEPTH);
+        programConfig.verify = true;
+        programConfig.verifyChangedOnly = true;
+        programConfig.fingerprintCacheFile = new File(getFilesDir(), FINGERPRINT_CACHE_FILE);
+        mPhysicaloid.setProgramConfig(programConfig);
         PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
         mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
     }
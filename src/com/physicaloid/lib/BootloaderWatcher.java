@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.util.Log;
+
+import com.physicaloid.lib.usb.UsbAccessor;
+import com.physicaloid.lib.usb.driver.uart.UartCdcAcm;
+
+/*
+ * Waits for a device to re-enumerate as the bootloader after the 1200 baud touch.
+ * ACTION_USB_DEVICE_ATTACHED may arrive late or not at all, so the device list is also polled
+ * without enumerating the interfaces. If the polling finds the bootloader before permission is
+ * granted, permission is requested and the device is reported as soon as the grant arrives.
+ */
+public class BootloaderWatcher {
+    private static final String TAG = BootloaderWatcher.class.getSimpleName();
+
+    private static final int POLL_INTERVAL = 50; // milliseconds
+    private static final long PERMISSION_TIMEOUT_NSEC = 8000L * 1000 * 1000; // Caterina's timeout
+
+    /**
+     * Callbacks which are called on the thread of the handler
+     */
+    public interface Listener {
+        void onBootloaderFound(UsbDevice device, long latencyNanos);
+        void onTimeout();
+    }
+
+    private Handler     mHandler;
+    private Listener    mListener;
+    private long        mStartNanos;
+    private long        mDeadlineNanos;
+    private boolean     mIsWatching;
+    private String      mRequestedDevice;   // device name which permission has been requested for
+
+    private long        mLastLatencyNanos = -1;
+    private long        mMaxLatencyNanos = -1;
+
+    private Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            if (!check(false)) {
+                mHandler.postDelayed(this, POLL_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * @param handler handler of the thread which polls and calls the listener
+     */
+    public BootloaderWatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Starts watching. Call this right after the 1200 baud touch.
+     * @param listener
+     * @param timeoutMillis
+     */
+    public void start(Listener listener, long timeoutMillis) {
+        stop();
+        mListener = listener;
+        mStartNanos = System.nanoTime();
+        mDeadlineNanos = mStartNanos + timeoutMillis * 1000000L;
+        mIsWatching = true;
+        mRequestedDevice = null;
+        mHandler.postDelayed(mPoll, POLL_INTERVAL);
+    }
+
+    /**
+     * Stops watching without calling the listener
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mPoll);
+        mIsWatching = false;
+        mListener = null;
+    }
+
+    public boolean isWatching() {
+        return mIsWatching;
+    }
+
+    /**
+     * Discards the device snapshot and checks the devices at once if watching.
+     * Call this when ACTION_USB_DEVICE_ATTACHED arrives.
+     */
+    public void notifyAttached() {
+        UsbAccessor.INSTANCE.invalidateTopology();
+        if (mIsWatching) {
+            check(true);
+        }
+    }
+
+    /**
+     * Gets the latency from start() to the bootloader found last time
+     * @return latency in nanoseconds (-1 : not found yet)
+     */
+    public long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    /**
+     * Gets the longest latency from start() to the bootloader found
+     * @return latency in nanoseconds (-1 : not found yet)
+     */
+    public long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    /**
+     * @return true if watching is finished
+     */
+    private boolean check(boolean byBroadcast) {
+        if (!mIsWatching) {
+            return true;
+        }
+        UsbDevice device = findBootloader();
+        long now = System.nanoTime();
+        Listener listener = mListener;
+        if (device != null) {
+            long latency = now - mStartNanos;
+            mLastLatencyNanos = latency;
+            if (latency > mMaxLatencyNanos) {
+                mMaxLatencyNanos = latency;
+            }
+            Log.i(TAG, "Bootloader found in " + (latency / 1000000L) + " ms by "
+                    + (byBroadcast ? "broadcast" : "polling"));
+            stop();
+            listener.onBootloaderFound(device, latency);
+            return true;
+        }
+        if (now - mDeadlineNanos >= 0) {
+            Log.w(TAG, "Bootloader not found");
+            stop();
+            listener.onTimeout();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Looks for the bootloader in the device list, which is cheap enough to poll.
+     * The device snapshot is enumerated again only when the bootloader is found.
+     */
+    private UsbDevice findBootloader() {
+        UsbAccessor usbAccess = UsbAccessor.INSTANCE;
+        UsbManager manager = usbAccess.manager();
+        if (manager == null) {
+            return null;
+        }
+        for (UsbDevice device : manager.getDeviceList().values()) {
+            if (!isBootloader(device)) {
+                continue;
+            }
+            if (manager.hasPermission(device)) {
+                usbAccess.refreshTopology(); // so that the bootloader can be opened at once
+                return device;
+            }
+            requestPermission(device);
+        }
+        return null;
+    }
+
+    /**
+     * Requests permission once for a device, which the polling finds after the grant.
+     * The deadline is extended while the bootloader waits for the user.
+     */
+    private void requestPermission(UsbDevice device) {
+        String name = device.getDeviceName();
+        if (name.equals(mRequestedDevice)) {
+            return;
+        }
+        mRequestedDevice = name;
+        Log.i(TAG, "Request permission for the bootloader: " + name);
+        UsbAccessor.INSTANCE.getPermission(device);
+        long deadline = System.nanoTime() + PERMISSION_TIMEOUT_NSEC;
+        if (deadline - mDeadlineNanos > 0) {
+            mDeadlineNanos = deadline;
+        }
+    }
+
+    private static boolean isBootloader(UsbDevice device) {
+        if (device.getVendorId() != UartCdcAcm.USB_VID_ARDUINO) {
+            return false;
+        }
+        for (int pid : FlashFarm.BOOTLOADER_PIDS) {
+            if (device.getProductId() == pid) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
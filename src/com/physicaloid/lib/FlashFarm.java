@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.physicaloid.lib.Physicaloid.ProcessCallBack;
+import com.physicaloid.lib.framework.AutoCommunicator;
+import com.physicaloid.lib.framework.SerialCommunicator;
+import com.physicaloid.lib.programmer.avr.AvrManager;
+import com.physicaloid.lib.programmer.avr.AvrTask;
+import com.physicaloid.lib.programmer.avr.ProgramConfig;
+import com.physicaloid.lib.programmer.avr.TransferErrors;
+import com.physicaloid.lib.usb.driver.uart.UartConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Runs the same tasks against several devices at once.
+ * Each device has its own communicator and AvrManager on a thread of its own.
+ */
+public class FlashFarm {
+    private static final String TAG = FlashFarm.class.getSimpleName();
+
+    /** PIDs of the devices running Caterina bootloader (Leonardo, Micro) */
+    public static final int[] BOOTLOADER_PIDS = { 0x0036, 0x0037 };
+
+    /**
+     * Provides the callback for each device
+     */
+    public interface CallBackFactory {
+        /**
+         * @param index index of the device
+         * @param serial communicator of the device
+         * @return callback of the device, or null
+         */
+        ProcessCallBack create(int index, SerialCommunicator serial);
+    }
+
+    private List<SerialCommunicator>    mSerials;
+    private ProgramConfig               mProgramConfig;
+    private ExecutorService             mExecutor;
+
+    /**
+     * @param serials communicators of the devices (e.g. fake devices on test)
+     */
+    public FlashFarm(List<SerialCommunicator> serials) {
+        mSerials = new ArrayList<SerialCommunicator>(serials);
+        mProgramConfig = new ProgramConfig();
+    }
+
+    /**
+     * Creates a farm of every attached device in bootloader mode
+     * @param context
+     * @return FlashFarm
+     */
+    public static FlashFarm create(Context context) {
+        return new FlashFarm(
+                new AutoCommunicator().getSerialCommunicators(context, BOOTLOADER_PIDS));
+    }
+
+    /**
+     * Sets the configuration which is used for all devices
+     * @param config configuration
+     */
+    public void setProgramConfig(ProgramConfig config) {
+        mProgramConfig = (config != null) ? config : new ProgramConfig();
+    }
+
+    /**
+     * Gets the number of devices
+     * @return number of devices
+     */
+    public int getDeviceCount() {
+        return mSerials.size();
+    }
+
+    /**
+     * Gets the communicator of a device
+     * @param index index of the device
+     * @return SerialCommunicator
+     */
+    public SerialCommunicator getSerial(int index) {
+        return mSerials.get(index);
+    }
+
+    /**
+     * Processes the tasks on all devices concurrently and waits for them.
+     * The images are decoded once and shared by the devices.
+     * @param tasks upload tasks
+     * @param board board profile
+     * @param factory provider of the callback for each device (null : no callback)
+     * @return result of each device
+     * @throws InterruptedException if the waiting thread is interrupted, devices are canceled
+     */
+    public boolean[] run(List<AvrTask> tasks, final Boards board, CallBackFactory factory)
+            throws InterruptedException {
+        for (AvrTask task : tasks) {
+            switch (task.getOperation()) {
+            case UPLOAD_FLASH:
+            case UPLOAD_EEPROM:
+                task.prepare();
+                break;
+            default:
+                throw new IllegalArgumentException("Only upload tasks can be shared");
+            }
+        }
+        final List<AvrTask> sharedTasks =
+                Collections.unmodifiableList(new ArrayList<AvrTask>(tasks));
+        int count = mSerials.size();
+        boolean[] results = new boolean[count];
+        if (count == 0) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        synchronized (this) {
+            mExecutor = executor;
+        }
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(count);
+            for (int i = 0; i < count; i++) {
+                final SerialCommunicator serial = mSerials.get(i);
+                final ProcessCallBack callback = (factory != null) ? factory.create(i, serial) : null;
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return processDevice(serial, sharedTasks, board, callback);
+                    }
+                }));
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Device " + i + " : " + e.getCause());
+                } catch (CancellationException e) {
+                    // result is false
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        } finally {
+            executor.shutdown();
+            synchronized (this) {
+                mExecutor = null;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Cancels the devices in progress
+     */
+    public synchronized void cancel() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow(); // programmers stop at interruption
+        }
+    }
+
+    private boolean processDevice(SerialCommunicator serial, List<AvrTask> tasks, Boards board,
+            ProcessCallBack callback) {
+        boolean isOpenedHere = false;
+        if (!serial.isOpened()) {
+            if (!serial.open()) {
+                if (callback != null) {
+                    callback.onError(TransferErrors.OPEN_DEVICE);
+                }
+                return false;
+            }
+            isOpenedHere = true;
+        }
+        try {
+            serial.clearBuffer();
+            if (callback != null) {
+                callback.onPreProcess();
+            }
+            AvrManager avrManager = new AvrManager(serial);
+            avrManager.setProgramConfig(mProgramConfig);
+            serial.setUartConfig(new UartConfig());
+            boolean ret = avrManager.run(tasks, board, callback);
+            if (callback != null) {
+                callback.onPostProcess(ret);
+            }
+            return ret;
+        } finally {
+            if (isOpenedHere) {
+                serial.close();
+            }
+        }
+    }
+}
@@ -27,13 +27,17 @@ import com.physicaloid.lib.framework.AutoCommunicator;
 import com.physicaloid.lib.framework.SerialCommunicator;
 import com.physicaloid.lib.programmer.avr.AvrManager;
 import com.physicaloid.lib.programmer.avr.AvrTask;
+import com.physicaloid.lib.programmer.avr.ProgramConfig;
 import com.physicaloid.lib.programmer.avr.TransferErrors;
+import com.physicaloid.lib.usb.driver.uart.ReadDataListener;
 import com.physicaloid.lib.usb.driver.uart.ReadListener;
 import com.physicaloid.lib.usb.driver.uart.UartConfig;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -44,14 +48,27 @@ public class Physicaloid {
 
     private Context mContext;
 
-    protected SerialCommunicator mSerial;
+    protected volatile SerialCommunicator mSerial;
+    private volatile ProgramConfig mProgramConfig;
+    private volatile String mDeviceSerial;
+    private int mBufferMaxSize;     // 0 : default
+    private int mOverflowPolicy;
 
-    private static final Object LOCK = new Object();
-    protected static final Object LOCK_WRITE = new Object();
-    protected static final Object LOCK_READ = new Object();
+    // Locks are per instance, so Physicaloids for different boards don't block each other.
+    // mLock guards opening and closing only, and mLockRead and mLockWrite guard each direction.
+    // processTasks() holds mLockProcess, and reads and writes by others return 0 meanwhile.
+    private final Object mLock = new Object();
+    private final Object mLockProcess = new Object();
+    protected final Object mLockWrite = new Object();
+    protected final Object mLockRead = new Object();
+    private volatile boolean mIsProcessing;
+
+    private volatile long mLastLockHoldNanos;
+    private volatile long mMaxLockHoldNanos;
 
     public Physicaloid(Context context) {
         this.mContext = context;
+        this.mProgramConfig = new ProgramConfig();
     }
 
     /**
@@ -70,10 +87,12 @@ public class Physicaloid {
      * @throws RuntimeException
      */
     public boolean open(UartConfig uart) throws RuntimeException {
-        synchronized (LOCK) {
+        synchronized (mLock) {
+            if(mIsProcessing) return false;
             if(mSerial == null) {
                 mSerial = new AutoCommunicator().getSerialCommunicator(mContext);
                 if(mSerial == null) return false;
+                applyBufferLimit();
             }
             if(mSerial.open()) {
                 mSerial.setUartConfig(uart);
@@ -90,7 +109,8 @@ public class Physicaloid {
      * @throws RuntimeException
      */
     public boolean close() throws RuntimeException {
-        synchronized (LOCK) {
+        synchronized (mLock) {
+            if(mIsProcessing) return false;
             if(mSerial == null) return true;
             if(mSerial.close()) {
                 mSerial = null;
@@ -120,20 +140,65 @@ public class Physicaloid {
      * @throws RuntimeException
      */
     public int read(byte[] buf, int size) throws RuntimeException {
-        synchronized (LOCK_READ) {
-            if(mSerial == null) return 0;
-            return mSerial.read(buf, size);
+        synchronized (mLockRead) {
+            SerialCommunicator serial = mSerial;
+            if(serial == null || mIsProcessing) return 0;
+            return serial.read(buf, size);
+        }
+    }
+
+    /**
+     * Reads from a device, waiting until the size is filled or the timeout passes
+     * @param buf
+     * @param offset start position in buf
+     * @param size
+     * @param timeoutNanos timeout in nanoseconds (0 : no wait)
+     * @return read byte size
+     * @throws RuntimeException
+     */
+    public int read(byte[] buf, int offset, int size, long timeoutNanos) throws RuntimeException {
+        synchronized (mLockRead) {
+            SerialCommunicator serial = mSerial;
+            if(serial == null || mIsProcessing) return 0;
+            return serial.read(buf, offset, size, timeoutNanos);
         }
     }
 
+    /**
+     * Gets an InputStream which reads from the device
+     * @param timeoutMillis timeout of each read in milliseconds
+     * @return InputStream
+     */
+    public InputStream getInputStream(long timeoutMillis) {
+        return new SerialInputStream(this, timeoutMillis);
+    }
+
+    /**
+     * Gets an OutputStream which writes to the device
+     * @return OutputStream
+     */
+    public OutputStream getOutputStream() {
+        return new SerialOutputStream(this);
+    }
+
+    /**
+     * Gets a channel which reads from and writes to the device
+     * @param timeoutMillis timeout of each read in milliseconds
+     * @return ByteChannel
+     */
+    public ByteChannel getChannel(long timeoutMillis) {
+        return new SerialByteChannel(this, timeoutMillis);
+    }
+
     /**
      * Clear buffer
      * @throws RuntimeException
      */
     public void clearBuffer() throws RuntimeException {
-        synchronized (LOCK_READ) {
-            if(mSerial == null) return;
-            mSerial.clearBuffer();
+        synchronized (mLockRead) {
+            SerialCommunicator serial = mSerial;
+            if(serial == null || mIsProcessing) return;
+            serial.clearBuffer();
         }
     }
 
@@ -144,7 +209,7 @@ public class Physicaloid {
      * @throws RuntimeException
      */
     public boolean addReadListener(ReadListener listener) throws RuntimeException {
-        synchronized (LOCK_READ) {
+        synchronized (mLockRead) {
             if(mSerial == null) return false;
             if(listener == null) return false;
             mSerial.addReadListener(listener);
@@ -152,12 +217,29 @@ public class Physicaloid {
         }
     }
 
+    /**
+     * Adds read listener which receives data itself on the read thread.
+     * It needn't call read(). While only this kind of listeners are registered,
+     * received data isn't kept for read() except during processTasks().
+     * @param listener ReadDataListener
+     * @return true : successful , false : fail
+     * @throws RuntimeException
+     */
+    public boolean addReadDataListener(ReadDataListener listener) throws RuntimeException {
+        synchronized (mLockRead) {
+            if(mSerial == null) return false;
+            if(listener == null) return false;
+            mSerial.addReadDataListener(listener);
+            return true;
+        }
+    }
+
     /**
      * Clears read listener
      * @throws RuntimeException
      */
     public void clearReadListener() throws RuntimeException {
-        synchronized (LOCK_READ) {
+        synchronized (mLockRead) {
             if(mSerial == null) return;
             mSerial.clearReadListener();
         }
@@ -182,9 +264,26 @@ public class Physicaloid {
      * @throws RuntimeException
      */
     public int write(byte[] buf, int size) throws RuntimeException {
-        synchronized (LOCK_WRITE){
-            if(mSerial == null) return 0;
-            return mSerial.write(buf, size);
+        synchronized (mLockWrite){
+            SerialCommunicator serial = mSerial;
+            if(serial == null || mIsProcessing) return 0;
+            return serial.write(buf, size);
+        }
+    }
+
+    /**
+     * Writes to a device.
+     * @param buf
+     * @param offset start position in buf
+     * @param size
+     * @return written byte size
+     * @throws RuntimeException
+     */
+    public int write(byte[] buf, int offset, int size) throws RuntimeException {
+        synchronized (mLockWrite){
+            SerialCommunicator serial = mSerial;
+            if(serial == null || mIsProcessing) return 0;
+            return serial.write(buf, offset, size);
         }
     }
 
@@ -253,6 +352,8 @@ public class Physicaloid {
 
     /**
      * Process tasks on background process. No need to open().
+     * Meanwhile read(), write(), open(), close() and setters called by others fail at once
+     * instead of waiting, and getters keep working.
      * @param tasks
      * @param board board profile
      * @param callback
@@ -262,76 +363,119 @@ public class Physicaloid {
     public boolean processTasks(final List<AvrTask> tasks, final Boards board,
             final ProcessCallBack callback) throws RuntimeException {
 
-        final boolean serialIsNull;
-        if (mSerial == null) { // if not open
-            if (DEBUG_SHOW) {
-                Log.d(TAG, "process : mSerial is null");
+        synchronized (mLockProcess) {
+            long start = System.nanoTime();
+            final boolean serialIsNull;
+            synchronized (mLock) {
+                if (mSerial == null) { // if not open
+                    if (DEBUG_SHOW) {
+                        Log.d(TAG, "process : mSerial is null");
+                    }
+                    // need to run on non-thread
+                    mSerial = new AutoCommunicator().getSerialCommunicator(mContext);
+                    applyBufferLimit();
+                    serialIsNull = true;
+                } else {
+                    serialIsNull = false;
+                }
+                mIsProcessing = true; // others can't open, close or configure from here
+            }
+            synchronized (mLockWrite) {
+                // wait for a write of another thread in progress
+            }
+            synchronized (mLockRead) {
+                // wait for a read of another thread in progress
+            }
+            try {
+                return processTasksLocked(tasks, board, callback, serialIsNull);
+            } finally {
+                mIsProcessing = false;
+                long held = System.nanoTime() - start;
+                mLastLockHoldNanos = held;
+                if (held > mMaxLockHoldNanos) {
+                    mMaxLockHoldNanos = held;
+                }
+                if (DEBUG_SHOW) {
+                    Log.d(TAG, "process : lock held " + (held / 1000000L) + " ms");
+                }
             }
-            // need to run on non-thread
-            mSerial = new AutoCommunicator().getSerialCommunicator(mContext);
-            serialIsNull = true;
-        } else {
-            serialIsNull = false;
         }
+    }
 
-        synchronized (LOCK) {
-        synchronized (LOCK_WRITE) {
-        synchronized (LOCK_READ) {
-            UartConfig tmpUartConfig = new UartConfig();
+    private boolean processTasksLocked(List<AvrTask> tasks, Boards board,
+            ProcessCallBack callback, boolean serialIsNull) {
+        UartConfig tmpUartConfig = new UartConfig();
 
-            if (mSerial == null) { // fail
-                if(DEBUG_SHOW) { Log.d(TAG, "process : mSerial is null"); }
-                if (callback != null) {
-                    callback.onError(TransferErrors.OPEN_DEVICE);
+        if (mSerial == null) { // fail
+            if(DEBUG_SHOW) { Log.d(TAG, "process : mSerial is null"); }
+            if (callback != null) {
+                callback.onError(TransferErrors.OPEN_DEVICE);
+            }
+            mSerial = null;
+            return false;
+        }
+
+        if(!mSerial.isOpened()){
+            if(!mSerial.open()) {
+                if(DEBUG_SHOW) { Log.d(TAG, "process : cannot mSerial.open"); }
+                if (callback != null) { callback.onError(TransferErrors.OPEN_DEVICE); }
+                if (serialIsNull) {
+                    mSerial.close();
                 }
                 mSerial = null;
                 return false;
             }
+            if(DEBUG_SHOW) { Log.d(TAG, "process : open successful"); }
+        } else { // if already open
+            UartConfig origUartConfig = mSerial.getUartConfig();
+            tmpUartConfig.baudrate = origUartConfig.baudrate;
+            tmpUartConfig.dataBits = origUartConfig.dataBits;
+            tmpUartConfig.stopBits = origUartConfig.stopBits;
+            tmpUartConfig.parity = origUartConfig.parity;
+            tmpUartConfig.dtrOn = origUartConfig.dtrOn;
+            tmpUartConfig.rtsOn = origUartConfig.rtsOn;
+            if(DEBUG_SHOW) { Log.d(TAG, "process : already open"); }
+        }
 
-            if(!mSerial.isOpened()){
-                if(!mSerial.open()) {
-                    if(DEBUG_SHOW) { Log.d(TAG, "process : cannot mSerial.open"); }
-                    if (callback != null) { callback.onError(TransferErrors.OPEN_DEVICE); }
-                    if (serialIsNull) {
-                        mSerial.close();
-                    }
-                    mSerial = null;
-                    return false;
-                }
-                if(DEBUG_SHOW) { Log.d(TAG, "process : open successful"); }
-            } else { // if already open
-                UartConfig origUartConfig = mSerial.getUartConfig();
-                tmpUartConfig.baudrate = origUartConfig.baudrate;
-                tmpUartConfig.dataBits = origUartConfig.dataBits;
-                tmpUartConfig.stopBits = origUartConfig.stopBits;
-                tmpUartConfig.parity = origUartConfig.parity;
-                tmpUartConfig.dtrOn = origUartConfig.dtrOn;
-                tmpUartConfig.rtsOn = origUartConfig.rtsOn;
-                if(DEBUG_SHOW) { Log.d(TAG, "process : already open"); }
-            }
+        mSerial.clearBuffer();
 
+        boolean ret = false;
+        if (callback != null) {
+            callback.onPreProcess();
+        }
+        AvrManager avrManager = new AvrManager(mSerial);
+        avrManager.setProgramConfig(mProgramConfig);
+        avrManager.setDeviceSerial(mDeviceSerial);
+        mSerial.setUartConfig(new UartConfig());
+        ret = avrManager.run(tasks, board, callback);
+        if (callback != null) {
+            callback.onPostProcess(ret);
+        }
+
+        if (serialIsNull) {
+            mSerial.close();
+        } else {
+            mSerial.setUartConfig(tmpUartConfig); // recover if already open
             mSerial.clearBuffer();
+        }
 
-            boolean ret = false;
-            if (callback != null) {
-                callback.onPreProcess();
-            }
-            AvrManager avrManager = new AvrManager(mSerial);
-            mSerial.setUartConfig(new UartConfig());
-            ret = avrManager.run(tasks, board, callback);
-            if (callback != null) {
-                callback.onPostProcess(ret);
-            }
+        return ret;
+    }
 
-            if (serialIsNull) {
-                mSerial.close();
-            } else {
-                mSerial.setUartConfig(tmpUartConfig); // recover if already open
-                mSerial.clearBuffer();
-            }
+    /**
+     * Gets how long the last processTasks() held the process lock of this instance
+     * @return hold time in nanoseconds (0 : not processed yet)
+     */
+    public long getLastLockHoldNanos() {
+        return mLastLockHoldNanos;
+    }
 
-            return ret;
-        }}}
+    /**
+     * Gets the longest time processTasks() has held the process lock of this instance
+     * @return hold time in nanoseconds (0 : not processed yet)
+     */
+    public long getMaxLockHoldNanos() {
+        return mMaxLockHoldNanos;
     }
 
     /**
@@ -358,16 +502,24 @@ public class Physicaloid {
         void onError(TransferErrors err);
     }
 
+    /**
+     * Optional callback which also receives statistics of written pages.<br>
+     * onPageStatistics is called after each write operation. The counts are in pages
+     * for UPLOAD_FLASH and in bytes for UPLOAD_EEPROM, which is written byte by byte.<br>
+     */
+    public interface PageStatisticsCallBack extends ProcessCallBack {
+        void onPageStatistics(AvrTask.Op operation, int written, int skipped);
+    }
+
     /**
      * Gets opened or closed status
      * @return true : opened, false : closed
      * @throws RuntimeException
      */
     public boolean isOpened() throws RuntimeException {
-        synchronized (LOCK) {
-            if(mSerial == null) return false;
-            return mSerial.isOpened();
-        }
+        SerialCommunicator serial = mSerial;
+        if(serial == null) return false;
+        return serial.isOpened();
     }
 
     /**
@@ -375,20 +527,94 @@ public class Physicaloid {
      * @param settings
      */
     public void setConfig(UartConfig settings) throws RuntimeException{
-        synchronized (LOCK) {
-            if(mSerial == null) return;
+        synchronized (mLock) {
+            if(mSerial == null || mIsProcessing) return;
             mSerial.setUartConfig(settings);
         }
     }
 
+    /**
+     * Sets the ceiling of the receive buffer and the behavior beyond it
+     * @param maxSize ceiling in bytes
+     * @param overflowPolicy RingBuffer.OVERFLOW_DROP or RingBuffer.OVERFLOW_BLOCK
+     */
+    public void setReceiveBufferLimit(int maxSize, int overflowPolicy) {
+        synchronized (mLock) {
+            mBufferMaxSize = maxSize;
+            mOverflowPolicy = overflowPolicy;
+            applyBufferLimit();
+        }
+    }
+
+    /**
+     * Gets total length of received bytes which were dropped since the device was opened
+     * @return dropped length
+     */
+    public long getDroppedBytes() {
+        SerialCommunicator serial = mSerial;
+        if(serial == null) return 0;
+        return serial.getDroppedBytes();
+    }
+
+    /**
+     * Gets the largest buffered length since the device was opened
+     * @return high-water mark
+     */
+    public int getHighWaterMark() {
+        SerialCommunicator serial = mSerial;
+        if(serial == null) return 0;
+        return serial.getHighWaterMark();
+    }
+
+    private void applyBufferLimit() {
+        if(mSerial != null && mBufferMaxSize > 0) {
+            mSerial.setBufferLimit(mBufferMaxSize, mOverflowPolicy);
+        }
+    }
+
+    /**
+     * Gets USB serial of the device
+     * @return serial, or empty string if unknown
+     */
+    public String getSerial() throws RuntimeException {
+        SerialCommunicator serial = mSerial;
+        if(serial == null) return "";
+        return serial.getSerial();
+    }
+
+    /**
+     * Sets USB serial of the device to identify it while it runs the bootloader which may
+     * have no serial
+     * @param serial
+     */
+    public void setDeviceSerial(String serial) {
+        mDeviceSerial = serial;
+    }
+
+    /**
+     * Sets configurations of programming
+     * @param config
+     */
+    public void setProgramConfig(ProgramConfig config) {
+        mProgramConfig = (config != null) ? config : new ProgramConfig();
+    }
+
+    /**
+     * Gets configurations of programming
+     * @return configurations of programming
+     */
+    public ProgramConfig getProgramConfig() {
+        return mProgramConfig;
+    }
+
     /**
      * Sets Baud Rate
      * @param baudrate any baud-rate e.g. 9600
      * @return true : successful, false : fail
      */
     public boolean setBaudrate(int baudrate) throws RuntimeException{
-        synchronized (LOCK) {
-            if(mSerial == null) return false;
+        synchronized (mLock) {
+            if(mSerial == null || mIsProcessing) return false;
             return mSerial.setBaudrate(baudrate);
         }
     }
@@ -399,8 +625,8 @@ public class Physicaloid {
      * @return true : successful, false : fail
      */
     public boolean setDataBits(int dataBits) throws RuntimeException{
-        synchronized (LOCK) {
-            if(mSerial == null) return false;
+        synchronized (mLock) {
+            if(mSerial == null || mIsProcessing) return false;
             return mSerial.setDataBits(dataBits);
         }
     }
@@ -411,8 +637,8 @@ public class Physicaloid {
      * @return true : successful, false : fail
      */
     public boolean setParity(int parity) throws RuntimeException{
-        synchronized (LOCK) {
-            if(mSerial == null) return false;
+        synchronized (mLock) {
+            if(mSerial == null || mIsProcessing) return false;
             return mSerial.setParity(parity);
         }
     }
@@ -423,8 +649,8 @@ public class Physicaloid {
      * @return true : successful, false : fail
      */
     public boolean setStopBits(int stopBits) throws RuntimeException{
-        synchronized (LOCK) {
-            if(mSerial == null) return false;
+        synchronized (mLock) {
+            if(mSerial == null || mIsProcessing) return false;
             return mSerial.setStopBits(stopBits);
         }
     }
@@ -436,8 +662,8 @@ public class Physicaloid {
      * @return true : successful, false : fail
      */
     public boolean setDtrRts(boolean dtrOn, boolean rtsOn) throws RuntimeException{
-        synchronized (LOCK) {
-            if(mSerial == null) return false;
+        synchronized (mLock) {
+            if(mSerial == null || mIsProcessing) return false;
             return mSerial.setDtrRts(dtrOn, rtsOn);
         }
     }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.physicaloid.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * NIO channel on top of Physicaloid's blocking read and write.
+ * Closing the channel doesn't close the device.
+ */
+public class SerialByteChannel implements ByteChannel {
+
+    private static final int TRANSFER_BUFFER_SIZE = 1024;
+
+    private Physicaloid mPhysicaloid;
+    private long        mTimeoutNanos;
+    private byte[]      mTransferBuf;   // only for buffers without an array
+    private volatile boolean mIsOpen = true;
+
+    /**
+     * @param physicaloid opened Physicaloid
+     * @param timeoutMillis timeout of each read in milliseconds
+     */
+    public SerialByteChannel(Physicaloid physicaloid, long timeoutMillis) {
+        mPhysicaloid = physicaloid;
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Waits for at least one byte, and then reads what has arrived
+     * @return read length (0 on timeout), or -1 if the device is closed
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (!mPhysicaloid.isOpened()) {
+            return -1;
+        }
+        int length = dst.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        byte[] buf;
+        int offset;
+        if (dst.hasArray()) {
+            buf = dst.array();
+            offset = dst.arrayOffset() + dst.position();
+        } else {
+            buf = obtainTransferBuffer();
+            offset = 0;
+            length = Math.min(length, buf.length);
+        }
+        int len = mPhysicaloid.read(buf, offset, 1, mTimeoutNanos);
+        if (len > 0 && length > 1) {
+            len += mPhysicaloid.read(buf, offset + 1, length - 1, 0);
+        }
+        if (len > 0) {
+            if (dst.hasArray()) {
+                dst.position(dst.position() + len);
+            } else {
+                dst.put(buf, 0, len);
+            }
+        }
+        return len;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int total = 0;
+        while (src.hasRemaining()) {
+            int length;
+            if (src.hasArray()) {
+                length = src.remaining();
+                if (mPhysicaloid.write(src.array(), src.arrayOffset() + src.position(), length)
+                        != length) {
+                    throw new IOException("Write failed");
+                }
+                src.position(src.position() + length);
+            } else {
+                byte[] buf = obtainTransferBuffer();
+                length = Math.min(src.remaining(), buf.length);
+                src.get(buf, 0, length);
+                if (mPhysicaloid.write(buf, 0, length) != length) {
+                    throw new IOException("Write failed");
+                }
+            }
+            total += length;
+        }
+        return total;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mIsOpen;
+    }
+
+    @Override
+    public void close() {
+        mIsOpen = false;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!mIsOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private byte[] obtainTransferBuffer() {
+        if (mTransferBuf == null) {
+            mTransferBuf = new byte[TRANSFER_BUFFER_SIZE];
+        }
+        return mTransferBuf;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.physicaloid.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * InputStream on top of Physicaloid's blocking read
+ */
+public class SerialInputStream extends InputStream {
+
+    private Physicaloid mPhysicaloid;
+    private long        mTimeoutNanos;
+    private byte[]      mOneByte = new byte[1];
+
+    /**
+     * @param physicaloid opened Physicaloid
+     * @param timeoutMillis timeout of each read in milliseconds
+     */
+    public SerialInputStream(Physicaloid physicaloid, long timeoutMillis) {
+        mPhysicaloid = physicaloid;
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int len = read(mOneByte, 0, 1);
+        return (len < 0) ? -1 : (mOneByte[0] & 0xFF);
+    }
+
+    /**
+     * Waits for at least one byte, and then reads what has arrived
+     * @return read length, or -1 if the device is closed
+     * @throws InterruptedIOException on timeout or interruption
+     */
+    @Override
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!mPhysicaloid.isOpened()) {
+            return -1;
+        }
+        int len = mPhysicaloid.read(buf, offset, 1, mTimeoutNanos);
+        if (len <= 0) {
+            if (!mPhysicaloid.isOpened()) {
+                return -1;
+            }
+            throw new InterruptedIOException("Read timed out");
+        }
+        if (length > 1) {
+            len += mPhysicaloid.read(buf, offset + 1, length - 1, 0);
+        }
+        return len;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.physicaloid.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * OutputStream on top of Physicaloid's write
+ */
+public class SerialOutputStream extends OutputStream {
+
+    private Physicaloid mPhysicaloid;
+    private byte[]      mOneByte = new byte[1];
+
+    /**
+     * @param physicaloid opened Physicaloid
+     */
+    public SerialOutputStream(Physicaloid physicaloid) {
+        mPhysicaloid = physicaloid;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mOneByte[0] = (byte) b;
+        write(mOneByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        if (mPhysicaloid.write(buf, offset, length) != length) {
+            throw new IOException("Write failed");
+        }
+    }
+}
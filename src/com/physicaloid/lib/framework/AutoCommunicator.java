@@ -20,10 +20,14 @@
 package com.physicaloid.lib.framework;
 
 import android.content.Context;
+import android.hardware.usb.UsbDevice;
 
 import com.physicaloid.lib.usb.UsbAccessor;
 import com.physicaloid.lib.usb.driver.uart.UartCdcAcm;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class AutoCommunicator {
     @SuppressWarnings("unused")
     private static final String TAG = AutoCommunicator.class.getSimpleName();
@@ -36,4 +40,20 @@ public class AutoCommunicator {
         usbAccess.init(context);
         return new UartCdcAcm(context);
     }
+
+    /**
+     * Gets a communicator for each attached device
+     * @param context
+     * @param productIds PIDs of the devices (null : any)
+     * @return list of communicators which aren't opened yet
+     */
+    public List<SerialCommunicator> getSerialCommunicators(Context context, int[] productIds) {
+        UsbAccessor usbAccess = UsbAccessor.INSTANCE;
+        usbAccess.init(context);
+        List<SerialCommunicator> serials = new ArrayList<SerialCommunicator>();
+        for (UsbDevice device : usbAccess.devices(UartCdcAcm.USB_VID_ARDUINO, productIds)) {
+            serials.add(new UartCdcAcm(context, device.getDeviceName()));
+        }
+        return serials;
+    }
 }
@@ -20,6 +20,7 @@
 package com.physicaloid.lib.framework;
 
 import com.physicaloid.lib.usb.driver.uart.UartConfig;
+import com.physicaloid.lib.usb.driver.uart.ReadDataListener;
 import com.physicaloid.lib.usb.driver.uart.ReadListener;
 
 import android.content.Context;
@@ -49,6 +50,25 @@ public abstract class SerialCommunicator {
      */
     abstract public int read(byte[] buf, int size);
 
+    /**
+     * Reads byte array into the specified position
+     * @param buf byte array
+     * @param offset start position in buf
+     * @param size read size
+     * @return actual read size
+     */
+    abstract public int read(byte[] buf, int offset, int size);
+
+    /**
+     * Reads byte array, waiting until the size is filled or the timeout passes
+     * @param buf byte array
+     * @param offset start position in buf
+     * @param size read size
+     * @param timeoutNanos timeout in nanoseconds (0 : no wait)
+     * @return actual read size
+     */
+    abstract public int read(byte[] buf, int offset, int size, long timeoutNanos);
+
     /**
      * Writes byte array
      * @param buf byte array
@@ -57,6 +77,15 @@ public abstract class SerialCommunicator {
      */
     abstract public int write(byte[] buf, int size);
 
+    /**
+     * Writes byte array from the specified position
+     * @param buf byte array
+     * @param offset start position in buf
+     * @param size write size
+     * @return actual written size
+     */
+    abstract public int write(byte[] buf, int offset, int size);
+
     /**
      * Checks device is opened
      * @return true : opened, false : not opened
@@ -154,11 +183,29 @@ public abstract class SerialCommunicator {
      */
     abstract public void addReadListener(ReadListener listener);
 
+    /**
+     * Adds read listener which receives data itself on the read thread.
+     * While only this kind of listeners are registered, received data isn't kept for read().
+     * @param listener ReadDataListener
+     */
+    abstract public void addReadDataListener(ReadDataListener listener);
+
     /**
      * Clears read listener
      */
     abstract public void clearReadListener();
 
+    /**
+     * Keeps received data for read() even while only data listeners are registered,
+     * until releaseBuffer() is called as many times
+     */
+    abstract public void holdBuffer();
+
+    /**
+     * Releases holdBuffer()
+     */
+    abstract public void releaseBuffer();
+
     /**
      * Starts read listener (default is started)
      */
@@ -173,4 +220,29 @@ public abstract class SerialCommunicator {
      * Clears read buffer
      */
     abstract public void clearBuffer();
+
+    /**
+     * Sets the ceiling of the receive buffer and the behavior beyond it
+     * @param maxSize ceiling in bytes
+     * @param overflowPolicy RingBuffer.OVERFLOW_DROP or RingBuffer.OVERFLOW_BLOCK
+     */
+    abstract public void setBufferLimit(int maxSize, int overflowPolicy);
+
+    /**
+     * Gets total length of received bytes which were dropped
+     * @return dropped length
+     */
+    abstract public long getDroppedBytes();
+
+    /**
+     * Gets the largest buffered length which has been observed
+     * @return high-water mark
+     */
+    abstract public int getHighWaterMark();
+
+    /**
+     * Gets USB serial of the device
+     * @return serial, or empty string if the device has no serial
+     */
+    abstract public String getSerial();
 }
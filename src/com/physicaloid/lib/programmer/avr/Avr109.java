@@ -21,7 +21,10 @@ import android.util.Log;
 
 import com.obnsoft.arduboyutil.BuildConfig;
 import com.physicaloid.lib.framework.SerialCommunicator;
-import com.physicaloid.lib.usb.driver.uart.ReadListener;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
 
 public class Avr109 extends TransferProtocol {
     private static final String TAG = Avr109.class.getSimpleName();
@@ -30,7 +33,9 @@ public class Avr109 extends TransferProtocol {
     private static final boolean DEBUG_SHOW_READ = true && !DEBUG_NOT_SHOW;
     private static final boolean DEBUG_SHOW_WRITE = true && !DEBUG_NOT_SHOW;
 
-    private static final int READ_TIMEOUT_MSEC = 5000;
+    private static final long READ_TIMEOUT_NSEC = 5000L * 1000 * 1000;
+    private static final int EEPROM_PROBE_SIZE = 8;
+    private static final int MAX_PIPELINE_DEPTH = 16;
 
     private static final byte CMD_SET_ADDRESS = 0x41;
     private static final byte CMD_START_BLOCK_LOAD = 0x42;
@@ -43,6 +48,7 @@ public class Avr109 extends TransferProtocol {
     private static final byte CMD_RETURN_SOFTWARE_VERSION = 0x56;
     private static final byte CMD_AUTO_INCREMENT_ADDRESS = 0x61;
     private static final byte CMD_CHECK_BLOCK_SUPPORT = 0x62;
+    private static final byte CMD_CHIP_ERASE = 0x65;
     private static final byte CMD_START_BLOCK_READ = 0x67;
     private static final byte CMD_RETURN_PROGRAMMER_TYPE = 0x70;
     private static final byte CMD_READ_SIGNATURE_BYTES = 0x73;
@@ -55,32 +61,53 @@ public class Avr109 extends TransferProtocol {
     private SerialCommunicator  mComm;
     //private AvrConf             mAVRConf;
     private AVRMem              mAVRMem;
-    private MyReadListener      mReadListener;
+    private String              mSoftwareId;
+    private int                 mBufferSize;
+
+    private byte[]              mCmdBuf = new byte[4];  // for short commands
+    private byte[]              mAckBuf = new byte[1];
+    private byte[]              mFrameBuf;              // for block load
+    private byte[]              mScratchBuf;            // for block read to compare
+    private AVRMem              mWrittenMem;            // memory of the last paged_write()
+    private boolean[]           mWrittenUnits;          // null : all units were written
 
     /*-----------------------------------------------------------------------*/
 
-    class MyReadListener implements ReadListener {
-        int mReadSize = 0;
-        int mReadSizeTarget;
-        @Override
-        public synchronized void onRead(int size) {
-            mReadSize += size;
-            if (isEnough()) {
-                notifyAll();
-            }
+    /*
+     * Blocks which have been sent but not acknowledged yet
+     */
+    private static class PendingBlocks {
+        private int[]   mAddrs;
+        private int[]   mLengths;
+        private int     mHead;
+        private int     mCount;
+
+        PendingBlocks(int capacity) {
+            mAddrs = new int[capacity];
+            mLengths = new int[capacity];
         }
-        public synchronized void waitData(int size, long timeout) {
-            mReadSizeTarget = size;
-            if (!isEnough()) {
-                try {
-                    wait(timeout);
-                } catch (InterruptedException e) {
-                    // do nothing
-                }
-            }
+        void push(int addr, int length) {
+            int index = (mHead + mCount) % mAddrs.length;
+            mAddrs[index] = addr;
+            mLengths[index] = length;
+            mCount++;
+        }
+        void pop() {
+            mHead = (mHead + 1) % mAddrs.length;
+            mCount--;
+        }
+        int peekAddr() {
+            return mAddrs[mHead];
+        }
+        int peekLength() {
+            return mLengths[mHead];
+        }
+        int size() {
+            return mCount;
         }
-        public boolean isEnough() {
-            return (mReadSize >= mReadSizeTarget);
+        void clear() {
+            mHead = 0;
+            mCount = 0;
         }
     }
 
@@ -119,7 +146,7 @@ public class Avr109 extends TransferProtocol {
             Log.e(TAG, "AVR109.check_sig_bytes(): failed to check signature bytes");
             return -1;
         }
-        Log.d(TAG, "AVR109.check_sig_bytes(): signature bytes = ".concat(toHexStr(sigBytes, 3)));
+        Log.d(TAG, "AVR109.check_sig_bytes(): signature bytes = ".concat(toHexStr(sigBytes, 0, 3)));
         return 0;
     }
 
@@ -133,6 +160,11 @@ public class Avr109 extends TransferProtocol {
         return pagedWriteImpl();
     }
 
+    @Override
+    public int paged_verify() {
+        return pagedVerifyImpl();
+    }
+
     @Override
     public void disable() {
         if (!sendCmdAndVerify(CMD_LEAVE_PROGRAMMING_MODE)) {
@@ -141,22 +173,18 @@ public class Avr109 extends TransferProtocol {
         if (!sendCmdAndVerify(CMD_EXIT_BOOTLOADER)) {
             Log.e(TAG, "AVR109.disable(): failed to exit bootloader");
         }
-        mComm.clearReadListener();
-        mReadListener = null;
     }
 
     /*-----------------------------------------------------------------------*/
 
     private int initiaizeImpl() {
-        mReadListener = new MyReadListener();
-        mComm.addReadListener(mReadListener);
-
         byte[] softId = sendCmdAndReceive(CMD_RETURN_SOFTWARE_IDENTIFIER, 7);
         if (softId == null) {
             Log.e(TAG, "AVR109.initiaize(): failed to check software identifier");
             return -1;
         }
-        Log.d(TAG, "AVR109.initiaize(): software identifier = ".concat(new String(softId)));
+        mSoftwareId = new String(softId);
+        Log.d(TAG, "AVR109.initiaize(): software identifier = ".concat(mSoftwareId));
         byte[] softVer = sendCmdAndReceive(CMD_RETURN_SOFTWARE_VERSION, 2);
         if (softVer == null) {
             Log.e(TAG, "AVR109.initiaize(): failed to check software version");
@@ -173,8 +201,8 @@ public class Avr109 extends TransferProtocol {
             Log.e(TAG, "AVR109.initiaize(): block transfer isn't supported");
             return -1;
         }
-        int bufferSize = byte2uint(blockSupport[1]) << 8 | byte2uint(blockSupport[2]);
-        Log.d(TAG, "AVR109.initiaize(): buffer size = " + bufferSize);
+        mBufferSize = byte2uint(blockSupport[1]) << 8 | byte2uint(blockSupport[2]);
+        Log.d(TAG, "AVR109.initiaize(): buffer size = " + mBufferSize);
         byte deviceCode = checkSupportedDeviceCodes();
         if (deviceCode == 0) {
             Log.e(TAG, "AVR109.initiaize(): failed to check supported device codes");
@@ -193,134 +221,602 @@ public class Avr109 extends TransferProtocol {
 
     private int pagedWriteImpl() {
         int pageSize = mAVRMem.page_size;
-        int totalBytes = Math.min(mAVRMem.buf.length, mAVRMem.size);
+        int totalBytes = Math.min(mAVRMem.image.getEnd(), mAVRMem.size);
 
         int addr = 0;
         int maxAddr = totalBytes;
-        int blockSize;
-        boolean useExtAddr = false;
+        int unitSize;
         byte memoryType;
 
         if ("flash".equals(mAVRMem.desc)) {
-            blockSize = pageSize;
+            unitSize = pageSize;
             memoryType = 'F';
         } else if ("eeprom".equals(mAVRMem.desc)) {
-            blockSize = 1; // Write to eeprom single bytes only
+            unitSize = 1;
             memoryType = 'E';
         } else {
             Log.e(TAG, "Unknown memory type");
             return -1;
         }
 
-        boolean setAddrRes = (useExtAddr) ? setExtAddress(addr) : setAddress(addr);
-        if (!setAddrRes) {
-            Log.e(TAG, "Failed to set address");
-            return -1;
+        boolean isDelta = (config != null && config.deltaWrite);
+        boolean isReadPass = false;
+        boolean[] changed = null;
+        if (memoryType == 'F' && fingerprints != null) {
+            // Spot checked fingerprints are trusted without reading back the skipped pages
+            changed = new boolean[(maxAddr + unitSize - 1) / unitSize];
+            if (!matchFingerprints(fingerprints, unitSize, maxAddr, changed)) {
+                changed = null;
+            }
+        }
+        if (changed == null && isDelta) {
+            changed = new boolean[(maxAddr + unitSize - 1) / unitSize];
+            int ret = findChangedPages(memoryType, unitSize, maxAddr, changed);
+            if (ret <= 0) {
+                return ret;
+            }
+            isReadPass = true;
         }
 
-        byte[] cmd = new byte[4 + blockSize];
-        while (addr < maxAddr) {
+        // Pages filled with 0xFF can be skipped only after erasing whole flash because
+        // the bootloader erases a page just before writing it.
+        boolean skipErased = (memoryType == 'F' && changed == null
+                && config != null && config.skipErasedPages);
+        if (memoryType == 'F' && changed != null && config != null && config.skipErasedPages) {
+            Log.w(TAG, "skipErasedPages is ignored because only changed pages are written");
+        }
+        if (skipErased && !sendCmdAndVerify(CMD_CHIP_ERASE)) {
+            Log.e(TAG, "Failed to erase chip");
+            return -1;
+        }
+        WritePlan plan = WritePlan.build(mAVRMem.image, maxAddr, unitSize, changed, skipErased);
+        Log.d(TAG, "AVR109.paged_write(): page runs = " + plan.getRunCount());
+
+        BlockSizeNegotiator sizer = newBlockSizer(memoryType, true, unitSize);
+        // The first multi-byte eeprom block is checked before more blocks are sent.
+        // Single-byte blocks are always safe, so they don't hold up pipelining.
+        boolean needsProbe = (memoryType == 'E' && !sizer.isKnown() && sizer.getBlockSize() > 1);
+        boolean isProbing = false; // the block to check is in flight
+        int depth = getPipelineDepth();
+        PendingBlocks pending = new PendingBlocks(depth);
+        int written = 0;
+        int skipped = plan.getSkippedUnits();
+        int nextAddr = -1; // address which the bootloader points to
+        byte[] cmd = obtainBuffer(mFrameBuf, 4 + sizer.getBlockSize());
+        mFrameBuf = cmd;
+        while (true) {
             if (Thread.interrupted()) {
                 report_cancel();
                 return 0;
             }
-            if ((maxAddr - addr) < blockSize) {
-                blockSize = maxAddr - addr;
+            addr = plan.nextAddr(addr);
+            boolean hasBlock = (addr < maxAddr);
+            boolean needsJump = (hasBlock && addr != nextAddr);
+
+            // Wait for an acknowledgement when the pipeline is full, before setting address
+            // or at the end
+            if (pending.size() > 0
+                    && (!hasBlock || needsJump || isProbing || pending.size() >= depth)) {
+                int ackAddr = pending.peekAddr();
+                int ackLength = pending.peekLength();
+                if (!receiveAck()) {
+                    // rewind to the last acknowledged address after the frames in flight are
+                    // answered, so that their acknowledgements aren't taken for resent frames
+                    drainAcks(pending.size() - 1);
+                    resync();
+                    pending.clear();
+                    isProbing = false;
+                    addr = ackAddr;
+                    nextAddr = -1;
+                    if (depth > 1) {
+                        depth = 1;
+                        Log.w(TAG, "Failed to block write: addr=0x" + Integer.toHexString(ackAddr)
+                                + ", retry without pipelining");
+                    } else if (sizer.fallback()) {
+                        Log.w(TAG, "Failed to block write: addr=0x" + Integer.toHexString(ackAddr)
+                                + ", retry with block size " + sizer.getBlockSize());
+                    } else {
+                        Log.e(TAG, "Failed to block write: addr=0x" + Integer.toHexString(ackAddr));
+                        return -1;
+                    }
+                    continue;
+                }
+                pending.pop();
+                if (isProbing && ackLength > 1) {
+                    // Some bootloaders mishandle multi-byte eeprom blocks
+                    isProbing = false;
+                    needsProbe = false;
+                    byte[] check = readSingleBytes(memoryType, ackAddr, ackLength);
+                    if (check == null) {
+                        Log.e(TAG, "Failed to read back: addr=0x" + Integer.toHexString(ackAddr));
+                        return -1;
+                    }
+                    nextAddr = -1;
+                    if (!mAVRMem.image.matches(ackAddr, check, 0, ackLength)) {
+                        Log.w(TAG, "Multi-byte eeprom block isn't supported, use single bytes");
+                        sizer.restrict();
+                        addr = ackAddr;
+                        continue;
+                    }
+                }
+                written += (ackLength + unitSize - 1) / unitSize;
+                if (isReadPass) {
+                    report_progress(50 + (int) ((ackAddr + ackLength) * 50L / totalBytes));
+                } else {
+                    report_progress((int) ((ackAddr + ackLength) * 100L / totalBytes));
+                }
+                continue;
+            }
+            if (!hasBlock) {
+                break;
+            }
+
+            int blockSize = Math.min(sizer.getBlockSize(), plan.runEnd(addr) - addr);
+            if (needsJump && !setMemoryAddress(addr, memoryType)) {
+                Log.e(TAG, "Failed to set address: addr=0x" + Integer.toHexString(addr));
+                return -1;
             }
             cmd[0] = CMD_START_BLOCK_LOAD;
             cmd[1] = (byte) ((blockSize >> 8) & 0xff);
             cmd[2] = (byte) (blockSize & 0xff);
             cmd[3] = memoryType;
-            System.arraycopy(mAVRMem.buf, addr, cmd, 4, blockSize);
-            if (!sendCmdAndVerify(cmd, 4 + blockSize)) {
-                Log.e(TAG, "Failed to block write: addr=0x" + Integer.toHexString(addr));
+            mAVRMem.image.copyTo(addr, cmd, 4, blockSize);
+            if (write(cmd, 4 + blockSize) != 4 + blockSize) {
+                Log.e(TAG, "Failed to send block: addr=0x" + Integer.toHexString(addr));
+                return -1;
+            }
+            pending.push(addr, blockSize);
+            isProbing |= (needsProbe && blockSize > 1);
+            addr += blockSize;
+            nextAddr = addr;
+        }
+        if (!needsProbe) {
+            sizer.commit(); // not remembered until a multi-byte block has been checked
+        }
+        mWrittenMem = mAVRMem;
+        mWrittenUnits = changed;
+        String unitName = (memoryType == 'F') ? "pages" : "bytes";
+        Log.d(TAG, "AVR109.paged_write(): written " + unitName + " = " + written
+                + ", skipped " + unitName + " = " + skipped);
+        report_pages(written, skipped);
+        return maxAddr;
+    }
+
+    /**
+     * Marks the pages which differ from remembered fingerprints
+     * after reading a few random pages to make sure that the fingerprints are still valid
+     * @param cached remembered CRC32 of each page
+     * @param pageSize
+     * @param maxAddr
+     * @param changed
+     * @return true : successful, false : fingerprints aren't reliable
+     */
+    private boolean matchFingerprints(long[] cached, int pageSize, int maxAddr, boolean[] changed) {
+        int known = Math.min(cached.length, changed.length);
+        if (known == 0) {
+            return false;
+        }
+        byte[] data = obtainBuffer(mScratchBuf, pageSize);
+        mScratchBuf = data;
+        CRC32 crc = new CRC32();
+        Random random = new Random();
+        int checks = (config != null) ? config.spotCheckPages : 0;
+        for (int i = 0; i < checks; i++) {
+            int page = random.nextInt(known);
+            int addr = page * pageSize;
+            if (!setMemoryAddress(addr, (byte) 'F') || !readBlock((byte) 'F', data, 0, pageSize)) {
+                Log.w(TAG, "Failed to spot check: addr=0x" + Integer.toHexString(addr));
+                resync();
+                return false;
+            }
+            crc.reset();
+            crc.update(data, 0, pageSize);
+            if (crc.getValue() != cached[page]) {
+                Log.w(TAG, "Fingerprints are stale: addr=0x" + Integer.toHexString(addr));
+                return false;
+            }
+        }
+        long[] current = FingerprintCache.hashPages(mAVRMem.image, maxAddr, pageSize);
+        for (int i = 0; i < changed.length; i++) {
+            changed[i] = (i >= cached.length || cached[i] != current[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Reads current memory and marks the pages which differ from the buffer
+     * @param memoryType
+     * @param unitSize
+     * @param maxAddr
+     * @param changed
+     * @return maxAddr : successful, 0 : canceled, -1 : fail
+     */
+    private int findChangedPages(byte memoryType, int unitSize, int maxAddr, boolean[] changed) {
+        BlockSizeNegotiator sizer = newBlockSizer(memoryType, false, unitSize);
+        if (memoryType == 'E' && !probeEepromRead(sizer, maxAddr)) {
+            Log.e(TAG, "Failed to probe eeprom block read");
+            return -1;
+        }
+        byte[] data = obtainBuffer(mScratchBuf, sizer.getBlockSize());
+        mScratchBuf = data;
+        int addr = 0;
+        int nextAddr = -1;
+        while (addr < maxAddr) {
+            if (Thread.interrupted()) {
+                report_cancel();
+                return 0;
+            }
+            int blockSize = Math.min(sizer.getBlockSize(), maxAddr - addr);
+            if (addr != nextAddr && !setMemoryAddress(addr, memoryType)) {
+                Log.e(TAG, "Failed to set address: addr=0x" + Integer.toHexString(addr));
+                return -1;
+            }
+            if (!readBlock(memoryType, data, 0, blockSize)) {
+                if (sizer.fallback()) {
+                    Log.w(TAG, "Failed to block read: addr=0x" + Integer.toHexString(addr)
+                            + ", retry with block size " + sizer.getBlockSize());
+                    resync();
+                    nextAddr = -1;
+                    continue;
+                }
+                Log.e(TAG, "Failed to block read: addr=0x" + Integer.toHexString(addr));
                 return -1;
             }
+            for (int offset = 0; offset < blockSize; offset += unitSize) {
+                int length = Math.min(unitSize, blockSize - offset);
+                changed[(addr + offset) / unitSize] =
+                        !mAVRMem.image.matches(addr + offset, data, offset, length);
+            }
             addr += blockSize;
-            report_progress((int) (addr * 100 / totalBytes));
+            nextAddr = addr;
+            report_progress((int) (addr * 50L / maxAddr));
         }
+        sizer.commit();
         return addr;
     }
 
+    private int pagedVerifyImpl() {
+        int pageSize = Math.max(mAVRMem.page_size, 1);
+        int totalBytes = Math.min(mAVRMem.image.getEnd(), mAVRMem.size);
+
+        int addr = 0;
+        int maxAddr = totalBytes;
+        int unitSize;
+        byte memoryType;
+
+        if ("flash".equals(mAVRMem.desc)) {
+            unitSize = pageSize;
+            memoryType = 'F';
+        } else if ("eeprom".equals(mAVRMem.desc)) {
+            unitSize = 1;
+            memoryType = 'E';
+        } else {
+            Log.e(TAG, "Unknown memory type");
+            return -1;
+        }
+
+        boolean[] targets = null;
+        if (config != null && config.verifyChangedOnly && mWrittenMem == mAVRMem) {
+            targets = mWrittenUnits;
+        }
+        verifyErrorAddr = -1;
+
+        BlockSizeNegotiator sizer = newBlockSizer(memoryType, false, unitSize);
+        if (memoryType == 'E' && !probeEepromRead(sizer, maxAddr)) {
+            Log.e(TAG, "Failed to probe eeprom block read");
+            return -1;
+        }
+        byte[] data = obtainBuffer(mScratchBuf, sizer.getBlockSize());
+        mScratchBuf = data;
+        CRC32 actualCrc = new CRC32();
+        CRC32 expectedCrc = new CRC32();
+        byte[] expected = new byte[pageSize];
+        int verified = 0;
+        int nextAddr = -1;
+        while (true) {
+            if (Thread.interrupted()) {
+                report_cancel();
+                return 0;
+            }
+            while (addr < maxAddr && addr % pageSize == 0
+                    && !isTargetPage(targets, unitSize, addr, pageSize, maxAddr)) {
+                addr += pageSize;
+            }
+            if (addr >= maxAddr) {
+                break;
+            }
+
+            int blockSize = Math.min(sizer.getBlockSize(), maxAddr - addr);
+            for (int a = addr - addr % pageSize + pageSize; a < addr + blockSize; a += pageSize) {
+                if (!isTargetPage(targets, unitSize, a, pageSize, maxAddr)) {
+                    blockSize = a - addr;
+                    break;
+                }
+            }
+            if (addr != nextAddr && !setMemoryAddress(addr, memoryType)) {
+                Log.e(TAG, "Failed to set address: addr=0x" + Integer.toHexString(addr));
+                return -1;
+            }
+            if (!readBlock(memoryType, data, 0, blockSize)) {
+                if (sizer.fallback()) {
+                    Log.w(TAG, "Failed to block read: addr=0x" + Integer.toHexString(addr)
+                            + ", retry with block size " + sizer.getBlockSize());
+                    resync();
+                    addr -= addr % pageSize; // the running CRC restarts from the page top
+                    actualCrc.reset();
+                    nextAddr = -1;
+                    continue;
+                }
+                Log.e(TAG, "Failed to block read: addr=0x" + Integer.toHexString(addr));
+                return -1;
+            }
+
+            // Update the running CRC and compare it at the end of each page
+            int offset = 0;
+            while (offset < blockSize) {
+                int pageTop = addr - addr % pageSize;
+                int pageEnd = Math.min(pageTop + pageSize, maxAddr);
+                int length = Math.min(blockSize - offset, pageEnd - addr);
+                actualCrc.update(data, offset, length);
+                addr += length;
+                offset += length;
+                if (addr == pageEnd) {
+                    expectedCrc.reset();
+                    mAVRMem.image.copyTo(pageTop, expected, 0, pageEnd - pageTop);
+                    expectedCrc.update(expected, 0, pageEnd - pageTop);
+                    if (actualCrc.getValue() != expectedCrc.getValue()) {
+                        verifyErrorAddr = pageTop;
+                        Log.e(TAG, "AVR109.paged_verify(): mismatch at page addr=0x"
+                                + Integer.toHexString(pageTop));
+                        return -1;
+                    }
+                    actualCrc.reset();
+                    verified++;
+                }
+            }
+            nextAddr = addr;
+            report_progress((int) (addr * 100L / totalBytes));
+        }
+        sizer.commit();
+        Log.d(TAG, "AVR109.paged_verify(): verified pages = " + verified);
+        return maxAddr;
+    }
+
     private int pagedReadImpl() {
         int pageSize = mAVRMem.page_size;
         int totalBytes = mAVRMem.size;
 
         int addr = 0;
         int maxAddr = totalBytes;
-        int blockSize;
-        boolean useExtAddr = false;
+        int unitSize;
         byte memoryType;
 
         if ("flash".equals(mAVRMem.desc)) {
-            blockSize = pageSize;
+            unitSize = pageSize;
             memoryType = 'F';
         } else if ("eeprom".equals(mAVRMem.desc)) {
-            blockSize = 1; // Read from eeprom single bytes only
+            unitSize = 1;
             memoryType = 'E';
         } else {
             Log.e(TAG, "Unknown memory type");
             return -1;
         }
 
-        boolean setAddrRes = (useExtAddr) ? setExtAddress(addr) : setAddress(addr);
-        if (!setAddrRes) {
-            Log.e(TAG, "Failed to set address");
+        BlockSizeNegotiator sizer = newBlockSizer(memoryType, false, unitSize);
+        if (memoryType == 'E' && !probeEepromRead(sizer, maxAddr)) {
+            Log.e(TAG, "Failed to probe eeprom block read");
             return -1;
         }
-
-        byte[] cmd = new byte[4];
-        mAVRMem.buf = new byte[maxAddr];
+        int nextAddr = -1;
+        byte[] data = obtainBuffer(mScratchBuf, sizer.getBlockSize());
+        mScratchBuf = data;
         while (addr < maxAddr) {
             if (Thread.interrupted()) {
                 report_cancel();
                 return 0;
             }
-            if ((maxAddr - addr) < blockSize) {
-                blockSize = maxAddr - addr;
+            int blockSize = Math.min(sizer.getBlockSize(), maxAddr - addr);
+            if (addr != nextAddr && !setMemoryAddress(addr, memoryType)) {
+                Log.e(TAG, "Failed to set address: addr=0x" + Integer.toHexString(addr));
+                return -1;
             }
-            cmd[0] = CMD_START_BLOCK_READ;
-            cmd[1] = (byte) ((blockSize >> 8) & 0xff);
-            cmd[2] = (byte) (blockSize & 0xff);
-            cmd[3] = memoryType;
-            byte[] data = sendCmdAndReceive(cmd, 4, blockSize);
-            if (data == null) {
+            if (!readBlock(memoryType, data, 0, blockSize)) {
+                if (sizer.fallback()) {
+                    Log.w(TAG, "Failed to block read: addr=0x" + Integer.toHexString(addr)
+                            + ", retry with block size " + sizer.getBlockSize());
+                    resync();
+                    nextAddr = -1;
+                    continue;
+                }
                 Log.e(TAG, "Failed to block read: addr=0x" + Integer.toHexString(addr));
                 return -1;
             }
-            System.arraycopy(data, 0, mAVRMem.buf, addr, blockSize);
+            if (sink != null) {
+                try {
+                    sink.write(addr, data, 0, blockSize);
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                    return -1;
+                }
+            }
             addr += blockSize;
-            report_progress((int) (addr * 100 / totalBytes));
+            nextAddr = addr;
+            report_progress((int) (addr * 100L / totalBytes));
         }
+        sizer.commit();
         return addr;
     }
 
     /*-----------------------------------------------------------------------*/
 
+    /**
+     * Checks whether a page contains any unit to be verified
+     * @param targets flags per unit, null means all
+     * @param unitSize
+     * @param addr top address of the page
+     * @param pageSize
+     * @param maxAddr
+     * @return true : to be verified
+     */
+    private boolean isTargetPage(boolean[] targets, int unitSize, int addr, int pageSize,
+            int maxAddr) {
+        if (targets == null) {
+            return true;
+        }
+        int end = Math.min(addr + pageSize, maxAddr);
+        for (int a = addr; a < end; a += unitSize) {
+            if (targets[a / unitSize]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean sendCmdAndVerify(byte cmd) {
-        return sendCmdAndVerify(new byte[] { cmd }, 1);
+        mCmdBuf[0] = cmd;
+        return sendCmdAndVerify(mCmdBuf, 1);
     }
 
     private boolean sendCmdAndVerify(byte[] buf, int length) {
-        byte[] recv = new byte[1];
         int done = write(buf, length);
         if (done == length) {
-            read(recv, 1);
+            return receiveAck();
+        }
+        return false;
+    }
+
+    private boolean receiveAck() {
+        mAckBuf[0] = 0;
+        read(mAckBuf, 0, 1);
+        return mAckBuf[0] == RSP_SUCCESS;
+    }
+
+    private int getPipelineDepth() {
+        if (config == null) {
+            return 1;
         }
-        return recv[0] == RSP_SUCCESS;
+        return Math.max(1, Math.min(config.pipelineDepth, MAX_PIPELINE_DEPTH));
+    }
+
+    /**
+     * Reads a block directly into the buffer
+     * @param memoryType
+     * @param buf
+     * @param offset
+     * @param blockSize
+     * @return true : successful, false : fail
+     */
+    private boolean readBlock(byte memoryType, byte[] buf, int offset, int blockSize) {
+        mCmdBuf[0] = CMD_START_BLOCK_READ;
+        mCmdBuf[1] = (byte) ((blockSize >> 8) & 0xff);
+        mCmdBuf[2] = (byte) (blockSize & 0xff);
+        mCmdBuf[3] = memoryType;
+        if (write(mCmdBuf, 4) != 4) {
+            return false;
+        }
+        return read(buf, offset, blockSize) == blockSize;
+    }
+
+    private byte[] obtainBuffer(byte[] buf, int size) {
+        return (buf != null && buf.length >= size) ? buf : new byte[size];
+    }
+
+    private BlockSizeNegotiator newBlockSizer(byte memoryType, boolean isWrite, int unitSize) {
+        return new BlockSizeNegotiator(mSoftwareId, memoryType, isWrite, mBufferSize, unitSize,
+                mAVRMem.size);
+    }
+
+    /**
+     * Compares a multi-byte eeprom block read with single byte reads, and restricts
+     * the block size to single bytes if the bootloader mishandles multi-byte blocks
+     * @param sizer
+     * @param maxAddr
+     * @return true : successful, false : fail
+     */
+    private boolean probeEepromRead(BlockSizeNegotiator sizer, int maxAddr) {
+        int length = Math.min(Math.min(EEPROM_PROBE_SIZE, sizer.getBlockSize()), maxAddr);
+        if (length <= 1 || sizer.isKnown()) {
+            return true;
+        }
+        byte[] data = new byte[length];
+        boolean isRead = setMemoryAddress(0, (byte) 'E') && readBlock((byte) 'E', data, 0, length);
+        if (!isRead) {
+            resync();
+        }
+        byte[] check = readSingleBytes((byte) 'E', 0, length);
+        if (check == null) {
+            return false;
+        }
+        if (!isRead || !isSameData(data, 0, check, 0, length)) {
+            Log.w(TAG, "Multi-byte eeprom block isn't supported, use single bytes");
+            sizer.restrict();
+        }
+        return true;
+    }
+
+    private byte[] readSingleBytes(byte memoryType, int addr, int length) {
+        if (!setMemoryAddress(addr, memoryType)) {
+            return null;
+        }
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++) {
+            if (!readBlock(memoryType, ret, i, 1)) {
+                return null;
+            }
+        }
+        return ret;
+    }
+
+    private void resync() {
+        mComm.clearBuffer();
+    }
+
+    /**
+     * Waits for the acknowledgements of blocks in flight and discards them
+     * @param count number of blocks in flight
+     */
+    private void drainAcks(int count) {
+        if (count <= 0) {
+            return;
+        }
+        byte[] buf = obtainBuffer(mScratchBuf, count);
+        mScratchBuf = buf;
+        int received = read(buf, 0, count);
+        if (received < count) {
+            Log.w(TAG, "AVR109.paged_write(): " + (count - received) + " block(s) unanswered");
+        }
+    }
+
+    private boolean isSameData(byte[] data, int dataOffset, byte[] buf, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[dataOffset + i] != buf[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean setMemoryAddress(int addr, byte memoryType) {
+        boolean useExtAddr = false;
+        if (memoryType == 'F') {
+            addr >>= 1; // Flash is addressed in words
+        }
+        return (useExtAddr) ? setExtAddress(addr) : setAddress(addr);
     }
 
     private boolean setAddress(int addr) {
-        byte[] cmd = new byte[] {
-                CMD_SET_ADDRESS, (byte) ((addr >> 8) & 0xff), (byte) (addr & 0xff) };
-        return sendCmdAndVerify(cmd, 3);
+        mCmdBuf[0] = CMD_SET_ADDRESS;
+        mCmdBuf[1] = (byte) ((addr >> 8) & 0xff);
+        mCmdBuf[2] = (byte) (addr & 0xff);
+        return sendCmdAndVerify(mCmdBuf, 3);
     }
 
     private boolean setExtAddress(int addr) {
-        byte[] cmd = new byte[] {
-                CMD_SET_EXTADDRESS, (byte) ((addr >> 16) & 0xff),
-                (byte) ((addr >> 8) & 0xff), (byte) (addr & 0xff) };
-        return sendCmdAndVerify(cmd, 4);
+        mCmdBuf[0] = CMD_SET_EXTADDRESS;
+        mCmdBuf[1] = (byte) ((addr >> 16) & 0xff);
+        mCmdBuf[2] = (byte) ((addr >> 8) & 0xff);
+        mCmdBuf[3] = (byte) (addr & 0xff);
+        return sendCmdAndVerify(mCmdBuf, 4);
     }
 
     private boolean selectDeviceType(byte type) {
@@ -337,7 +833,7 @@ public class Avr109 extends TransferProtocol {
         int done = write(buf, length);
         if (done == length) {
             byte[] recv = new byte[recvLength];
-            done = read(recv, recvLength);
+            done = read(recv, 0, recvLength);
             if (done == recvLength) {
                 return recv;
             }
@@ -354,7 +850,7 @@ public class Avr109 extends TransferProtocol {
         byte ret = 0;
         byte[] buf = new byte[] { CMD_RETURN_SUPPORTED_DEVICE_CODES };
         if (write(buf, 1) == 1) {
-            while (read(buf, 1) == 1) {
+            while (read(buf, 0, 1) == 1) {
                 if (buf[0] == RSP_TERMINATE) {
                     break;
                 }
@@ -366,15 +862,10 @@ public class Avr109 extends TransferProtocol {
         return ret;
     }
 
-    private int read(byte[] buf, int length) {
-        int retval = 0;
-        mReadListener.waitData(length, READ_TIMEOUT_MSEC);
-        retval = mComm.read(buf, length);
-        if (retval > 0) {
-            mReadListener.mReadSize -= retval;
-            if (DEBUG_SHOW_READ) {
-                Log.d(TAG, "read(" + retval + ") : " + toHexStr(buf, retval));
-            }
+    private int read(byte[] buf, int offset, int length) {
+        int retval = mComm.read(buf, offset, length, READ_TIMEOUT_NSEC);
+        if (retval > 0 && DEBUG_SHOW_READ) {
+            Log.d(TAG, "read(" + retval + ") : " + toHexStr(buf, offset, retval));
         }
         return retval;
     }
@@ -384,7 +875,7 @@ public class Avr109 extends TransferProtocol {
         retval = mComm.write(buf, length);
         if (DEBUG_SHOW_WRITE) {
             if (retval > 0) {
-                Log.d(TAG, "write(" + retval + ") : " + toHexStr(buf, retval));
+                Log.d(TAG, "write(" + retval + ") : " + toHexStr(buf, 0, retval));
             }
         }
         return retval;
@@ -398,9 +889,9 @@ public class Avr109 extends TransferProtocol {
         return String.format("0x%02x", b);
     }
 
-    private String toHexStr(byte[] b, int length) {
+    private String toHexStr(byte[] b, int offset, int length) {
         StringBuffer strBuf = new StringBuffer();
-        for (int i = 0; i < length; i++) {
+        for (int i = offset; i < offset + length; i++) {
             strBuf.append(toHexStr(b[i])).append(' ');
         }
         strBuf.setLength(strBuf.length() - 1);
@@ -307,7 +307,7 @@ class AVRMem {
     int readsize;               // stk500 v2 xml file parameter
     int pollindex;              // stk500 v2 xml file parameter
 
-    byte[]      buf;            // pointer to memory buffer
+    SparseImage image;          // image to be written
     OPCODE[]    op;             // opcodes
 
     AVRMem(AvrConf avrConf){
@@ -332,7 +332,6 @@ class AVRMem {
         blocksize           = eeprom.blocksize;
         readsize            = eeprom.readsize;
         pollindex           = 0;
-        buf                 = null;
         op                  = new OPCODE[AVR_OP_MAX];
         for(int i=0; i<AVR_OP_MAX; i++) {
             op[i] = new OPCODE();
@@ -361,7 +360,6 @@ class AVRMem {
         blocksize           = flash.blocksize;
         readsize            = flash.readsize;
         pollindex           = 0;
-        buf                 = null;
         op                  = new OPCODE[AVR_OP_MAX];
         for(int i=0; i<AVR_OP_MAX; i++) {
             op[i] = new OPCODE();
@@ -374,11 +372,6 @@ class AVRMem {
         parseOpcode(op[AVR_OP_WRITEPAGE], flash.writepage);
     }
 
-    void setBuf(byte[] inBuf, int length) {
-        buf = new byte[length];
-        System.arraycopy(inBuf, 0, buf, 0, length);
-    }
-
     void parseOpcode(OPCODE op, String[] mem) {
         String tmpstr="";
         String[] str;
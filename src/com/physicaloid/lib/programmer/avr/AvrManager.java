@@ -38,10 +38,8 @@ import com.physicaloid.lib.Physicaloid.ProcessCallBack;
 import com.physicaloid.lib.framework.SerialCommunicator;
 import com.physicaloid.lib.programmer.avr.AvrTask.Op;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -56,15 +54,31 @@ public class AvrManager {
     private AvrConf             mAVRConf;
     private AVRMem              mAVRMemFlash;
     private AVRMem              mAVRMemEeprom;
+    private ProgramConfig       mProgramConfig;
+    private String              mDeviceSerial;
 
     public AvrManager(SerialCommunicator serial) {
         mComm = serial;
+        mProgramConfig = new ProgramConfig();
     }
 
     public void setSerial(SerialCommunicator serial) {
         mComm = serial;
     }
 
+    public void setProgramConfig(ProgramConfig config) {
+        mProgramConfig = (config != null) ? config : new ProgramConfig();
+    }
+
+    /**
+     * Sets USB serial of the device which was seen before switching to the bootloader.
+     * This is used when the bootloader itself has no serial.
+     * @param serial
+     */
+    public void setDeviceSerial(String serial) {
+        mDeviceSerial = serial;
+    }
+
     public boolean run(AvrTask task, Boards board, ProcessCallBack callback) {
         if (task != null) {
             ArrayList<AvrTask> tasks = new ArrayList<AvrTask>();
@@ -75,6 +89,15 @@ public class AvrManager {
     }
 
     public boolean run(List<AvrTask> tasks, Boards board, ProcessCallBack callback) {
+        mComm.holdBuffer(); // the programmer reads responses even if a console takes data
+        try {
+            return runTasks(tasks, board, callback);
+        } finally {
+            mComm.releaseBuffer();
+        }
+    }
+
+    private boolean runTasks(List<AvrTask> tasks, Boards board, ProcessCallBack callback) {
         if (board != Boards.ARDUINO_LEONARD) {
             if (callback != null) {
                 callback.onError(TransferErrors.AVR_CHIPTYPE);
@@ -84,6 +107,7 @@ public class AvrManager {
         mProg = new Avr109();
         mProg.setSerial(mComm);
         mProg.setCallback(callback);
+        mProg.setProgramConfig(mProgramConfig);
 
         /////////////////////////////////////////////////////////////////
         // AVRタイプの定数セット
@@ -121,6 +145,19 @@ public class AvrManager {
             return false;
         }
 
+        String serial = mComm.getSerial();
+        if (serial == null || serial.length() == 0) {
+            serial = mDeviceSerial;
+        }
+        FingerprintCache fingerprintCache = null;
+        if (mProgramConfig.fingerprintCacheFile != null) {
+            if (FingerprintCache.isUniqueSerial(serial)) {
+                fingerprintCache = new FingerprintCache(mProgramConfig.fingerprintCacheFile);
+            } else {
+                Log.i(TAG, "Fingerprint cache isn't used: serial \"" + serial + "\" isn't unique");
+            }
+        }
+
         /////////////////////////////////////////////////////////////////
         // ファイル読み込み
         /////////////////////////////////////////////////////////////////
@@ -129,32 +166,46 @@ public class AvrManager {
                 int result = -1;
                 switch (task.getOperation()) {
                 case UPLOAD_FLASH:
-                    getFileToBuf(mAVRMemFlash, task.getInputStream(), task.isHex());
+                    getFileToBuf(mAVRMemFlash, task);
                     mProg.setOperation(Op.UPLOAD_FLASH);
                     mProg.setConfig(mAVRConf, mAVRMemFlash);
+                    int pageSize = mAVRMemFlash.page_size;
+                    if (fingerprintCache != null) {
+                        mProg.setFingerprints(fingerprintCache.get(serial, pageSize));
+                    }
                     result = mProg.paged_write();
+                    if (result > 0 && mProgramConfig.verify) {
+                        result = mProg.paged_verify();
+                    }
+                    mProg.setFingerprints(null);
+                    if (fingerprintCache != null) {
+                        if (result > 0) {
+                            int length = Math.min(mAVRMemFlash.image.getEnd(), mAVRMemFlash.size);
+                            fingerprintCache.put(serial, pageSize,
+                                    FingerprintCache.hashPages(mAVRMemFlash.image, length, pageSize));
+                        } else {
+                            fingerprintCache.remove(serial);
+                        }
+                    }
                     break;
                 case UPLOAD_EEPROM:
-                    getFileToBuf(mAVRMemEeprom, task.getInputStream(), task.isHex());
+                    getFileToBuf(mAVRMemEeprom, task);
                     mProg.setOperation(Op.UPLOAD_EEPROM);
                     mProg.setConfig(mAVRConf, mAVRMemEeprom);
                     result = mProg.paged_write();
+                    if (result > 0 && mProgramConfig.verify) {
+                        result = mProg.paged_verify();
+                    }
                     break;
                 case DOWNLOAD_FLASH:
                     mProg.setOperation(Op.DOWNLOAD_FLASH);
                     mProg.setConfig(mAVRConf, mAVRMemFlash);
-                    result = mProg.paged_read();
-                    if (result > 0) {
-                        putFileFromBuf(mAVRMemFlash, task.getOutputStream(), task.isHex());
-                    }
+                    result = downloadToFile(mAVRMemFlash, task);
                     break;
                 case DOWNLOAD_EEPROM:
                     mProg.setOperation(Op.DOWNLOAD_EEPROM);
                     mProg.setConfig(mAVRConf, mAVRMemEeprom);
-                    result = mProg.paged_read();
-                    if (result > 0) {
-                        putFileFromBuf(mAVRMemEeprom, task.getOutputStream(), task.isHex());
-                    }
+                    result = downloadToFile(mAVRMemEeprom, task);
                     break;
                 default:
                     break;
@@ -164,7 +215,8 @@ public class AvrManager {
                 } else if (result < 0) {
                     Log.e(TAG, "operarion failed (" + task.getOperation().name() + ")");
                     if (callback != null) {
-                        callback.onError(TransferErrors.OPERATION);
+                        callback.onError((mProg.getVerifyErrorAddress() >= 0)
+                                ? TransferErrors.VERIFY : TransferErrors.OPERATION);
                     }
                     return false;
                 }
@@ -195,65 +247,60 @@ public class AvrManager {
     }
 
     /**
-     * Converts a file to byte arrays
+     * Sets the decoded image of a task to the memory.
+     * The image has usually been prepared while the bootloader was starting.
      * @param avrMem
-     * @param in
-     * @param isHex
-     * @throws FileNotFoundException
-     * @throws IOException
+     * @param task
      * @throws Exception
      */
-    private void getFileToBuf(AVRMem avrMem, InputStream in, boolean isHex)
-            throws FileNotFoundException, IOException, Exception {
-
-        long byteLength;
-        if (isHex) {
-            IntelHexFileToBuf intelHex = new IntelHexFileToBuf();
-            intelHex.parse(in);
-            byteLength = intelHex.getByteLength();
-            avrMem.buf = new byte[(int) byteLength];
-            intelHex.getHexData(avrMem.buf);
-        } else {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            byte[] buf = new byte[1024 * 1024];
-            int len;
-            while ((len = in.read(buf)) >= 0) {
-                bout.write(buf, 0, len);
-            }
-            bout.close();
-            avrMem.buf = bout.toByteArray();
-            byteLength = avrMem.buf.length;
-        }
-        in.close();
+    private void getFileToBuf(AVRMem avrMem, AvrTask task) throws Exception {
+        avrMem.image = task.getImage();
 
         if (DEBUG_SHOW_HEXDUMP) {
-            showHexDump(avrMem.buf, byteLength);
+            byte[] buf = avrMem.image.toByteArray();
+            showHexDump(buf, buf.length);
         }
     }
 
     /**
-     * Output byte arrays to a file
+     * Reads memory and writes each block to a file as soon as it arrives.
+     * The file is left only when the whole memory has been written.
      * @param avrMem
-     * @param out
-     * @param isHex 
-     * @throws FileNotFoundException
+     * @param task
+     * @return result of paged_read()
      * @throws IOException
-     * @throws Exception
      */
-    private void putFileFromBuf(AVRMem avrMem, OutputStream out, boolean isHex)
-            throws FileNotFoundException, IOException, Exception {
-
-        int byteLength = avrMem.buf.length;
-        if (isHex) {
-            IntelHexFileToBuf.convert(avrMem.buf, out);
+    private int downloadToFile(AVRMem avrMem, AvrTask task) throws IOException {
+        OutputStream out = task.getOutputStream();
+        MemorySink sink;
+        if (task.isHex()) {
+            IntelHexWriter writer = new IntelHexWriter(out);
+            writer.setOmitErased(mProgramConfig.omitErasedRecords);
+            sink = writer;
         } else {
-            out.write(avrMem.buf);
+            sink = new BinaryWriter(out);
         }
-        out.close();
-
-        if (DEBUG_SHOW_HEXDUMP) {
-            showHexDump(avrMem.buf, byteLength);
+        int result = -1;
+        boolean isFinished = false;
+        mProg.setMemorySink(sink);
+        try {
+            result = mProg.paged_read();
+            if (result > 0) {
+                sink.finish();
+                isFinished = true;
+            }
+        } finally {
+            mProg.setMemorySink(null);
+            try {
+                out.close();
+            } finally {
+                if (!task.finishOutput(isFinished) && isFinished) {
+                    Log.e(TAG, "Failed to rename the downloaded file");
+                    result = -1;
+                }
+            }
         }
+        return result;
     }
 
     /**
@@ -277,4 +324,25 @@ public class AvrManager {
         }
         Log.d(TAG, strBuf.toString());
     }
+
+    /*
+     * Writes memory contents as raw binary
+     */
+    private static class BinaryWriter implements MemorySink {
+        private OutputStream mOut;
+
+        BinaryWriter(OutputStream out) {
+            mOut = new BufferedOutputStream(out);
+        }
+
+        @Override
+        public void write(int addr, byte[] buf, int offset, int length) throws IOException {
+            mOut.write(buf, offset, length);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            mOut.flush();
+        }
+    }
 }
@@ -22,8 +22,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
 
 import com.physicaloid.misc.ArduboyUtils;
@@ -41,10 +44,18 @@ public class AvrTask {
     public static final String EXT_EEPROM   = ".eeprom";
     public static final String EXT_HEX      = ".hex";
 
+    private static final String EXT_PARTIAL = ".part";
+
     private Op              operation;
+    private File            file;
     private InputStream     inputStream;
     private OutputStream    outputStream;
+    private File            partialFile;    // written until the download succeeds
     private boolean         isHex;
+    private boolean         isArduboy;
+
+    private SparseImage     image;
+    private Exception       prepareError;
 
     public AvrTask(Op operation, File file) throws FileNotFoundException {
         this.operation = operation;
@@ -52,18 +63,16 @@ public class AvrTask {
         switch (operation) {
         case UPLOAD_FLASH:
         case UPLOAD_EEPROM:
-            if (fileName.endsWith(EXT_ARDUBOY)) {
-                byte[] hexData = ArduboyUtils.extractHexFromArduboy(file);
-                inputStream = new ByteArrayInputStream(hexData);
-                isHex = true;
-            } else {
-                inputStream = new FileInputStream(file);
-                isHex = fileName.endsWith(EXT_HEX);
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file.getPath());
             }
+            this.file = file;
+            isArduboy = fileName.endsWith(EXT_ARDUBOY);
+            isHex = isArduboy || fileName.endsWith(EXT_HEX);
             break;
         case DOWNLOAD_FLASH:
         case DOWNLOAD_EEPROM:
-            outputStream = new FileOutputStream(file);
+            this.file = file;
             isHex = fileName.endsWith(EXT_HEX);
             break;
         default:
@@ -72,7 +81,7 @@ public class AvrTask {
     }
 
     public AvrTask(Op operation, InputStream inputStream, boolean isHex) {
-        if (operation != Op.UPLOAD_FLASH || operation != Op.UPLOAD_EEPROM
+        if (operation != Op.UPLOAD_FLASH && operation != Op.UPLOAD_EEPROM
                 || inputStream == null) {
             throw new IllegalArgumentException();
         }
@@ -82,7 +91,7 @@ public class AvrTask {
     }
 
     public AvrTask(Op operation, OutputStream outputStream, boolean isHex) {
-        if (operation != Op.DOWNLOAD_FLASH || operation != Op.DOWNLOAD_EEPROM
+        if (operation != Op.DOWNLOAD_FLASH && operation != Op.DOWNLOAD_EEPROM
                 || outputStream == null) {
             throw new IllegalArgumentException();
         }
@@ -95,16 +104,124 @@ public class AvrTask {
         return operation;
     }
 
-    public InputStream getInputStream() {
+    public InputStream getInputStream() throws FileNotFoundException {
+        if (inputStream == null && file != null) {
+            if (isArduboy) {
+                byte[] hexData = ArduboyUtils.extractHexFromArduboy(file);
+                if (hexData == null) {
+                    throw new FileNotFoundException(file.getPath());
+                }
+                inputStream = new ByteArrayInputStream(hexData);
+            } else {
+                inputStream = new FileInputStream(file);
+            }
+        }
         return inputStream;
     }
 
-    public OutputStream getOutputStream() {
+    /**
+     * Gets the stream to download to. A file is written under a temporary name
+     * until finishOutput() is called.
+     * @return OutputStream
+     * @throws FileNotFoundException
+     */
+    public OutputStream getOutputStream() throws FileNotFoundException {
+        if (outputStream == null && file != null) {
+            partialFile = new File(file.getPath().concat(EXT_PARTIAL));
+            outputStream = new FileOutputStream(partialFile);
+        }
         return outputStream;
     }
 
+    /**
+     * Renames the downloaded file to the target name, or deletes it on failure.
+     * The stream must have been closed.
+     * @param success true if the download has succeeded
+     * @return true if successful
+     */
+    public boolean finishOutput(boolean success) {
+        File partial = partialFile;
+        partialFile = null;
+        if (partial == null) {
+            return success;
+        }
+        if (success && partial.renameTo(file)) {
+            return true;
+        }
+        partial.delete();
+        return false;
+    }
+
     public boolean isHex() {
         return isHex;
     }
 
+    /**
+     * Decodes the image to upload (zip extraction, HEX parsing) in advance.
+     * This can be called on a worker thread while the device is switching to the bootloader.
+     */
+    public synchronized void prepare() {
+        if (image != null || prepareError != null) {
+            return;
+        }
+        if (operation != Op.UPLOAD_FLASH && operation != Op.UPLOAD_EEPROM) {
+            return;
+        }
+        try {
+            if (inputStream == null && file != null) {
+                image = decodeFile();
+                return;
+            }
+            InputStream in = getInputStream();
+            try {
+                ByteBuffer buf = IntelHexReader.readFully(in); // e.g. content URI
+                image = isHex ? decodeHex(buf) : SparseImage.wrap(buf);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            prepareError = e;
+        }
+    }
+
+    /**
+     * Gets the decoded image to upload. This waits for prepare() in progress.
+     * @return image, which mustn't be modified because it may be shared
+     * @throws Exception which has occurred while decoding
+     */
+    public synchronized SparseImage getImage() throws Exception {
+        prepare();
+        if (prepareError != null) {
+            throw prepareError;
+        }
+        return image;
+    }
+
+    /**
+     * Maps the file so that raw images are used without copying and HEX text stays off the heap.
+     */
+    private SparseImage decodeFile() throws IOException {
+        if (isArduboy) {
+            byte[] hexData = ArduboyUtils.extractHexFromArduboy(file);
+            if (hexData == null) {
+                throw new FileNotFoundException(file.getPath());
+            }
+            return decodeHex(ByteBuffer.wrap(hexData));
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return isHex ? decodeHex(buf) : SparseImage.wrap(buf); // mapping outlives the channel
+        } finally {
+            in.close();
+        }
+    }
+
+    private static SparseImage decodeHex(ByteBuffer buf) throws IOException {
+        IntelHexFileToBuf intelHex = new IntelHexFileToBuf();
+        intelHex.parse(buf); // parsed on all cores if large
+        return intelHex.getImage();
+    }
+
 }
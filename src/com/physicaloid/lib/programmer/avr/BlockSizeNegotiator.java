@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+import java.util.HashMap;
+
+/*
+ * Decides the size of block transfers from the buffer size which the bootloader advertised.
+ * The best working size is remembered per bootloader identifier while the process lives.
+ */
+class BlockSizeNegotiator {
+
+    private static final int MAX_BLOCK_SIZE = 0xFFFF; // length field of block commands
+
+    private static final HashMap<String, Integer> sWorkingSizes = new HashMap<String, Integer>();
+
+    private String  mKey;
+    private int     mUnitSize;
+    private int     mMinSize;
+    private int     mSize;
+    private boolean mIsKnown;
+
+    /**
+     * @param identifier software identifier of the bootloader
+     * @param memoryType 'F' or 'E'
+     * @param isWrite true for block load, false for block read
+     * @param bufferSize buffer size which the bootloader advertised
+     * @param unitSize blocks are fitted to multiples of this size (e.g. page size)
+     * @param maxSize upper limit e.g. memory size
+     */
+    BlockSizeNegotiator(String identifier, byte memoryType, boolean isWrite,
+            int bufferSize, int unitSize, int maxSize) {
+        mKey = identifier + ':' + (char) memoryType + (isWrite ? ":W" : ":R");
+        mUnitSize = Math.max(unitSize, 1);
+        int size = Math.min(Math.min(bufferSize, maxSize), MAX_BLOCK_SIZE);
+        if (size >= mUnitSize) {
+            size -= size % mUnitSize;
+            mMinSize = mUnitSize;
+        } else {
+            size = Math.max(size, 1);
+            mMinSize = size;
+        }
+        synchronized (sWorkingSizes) {
+            Integer workingSize = sWorkingSizes.get(mKey);
+            if (workingSize != null && workingSize < size) {
+                size = workingSize;
+            }
+            mIsKnown = (workingSize != null);
+        }
+        mSize = size;
+    }
+
+    /**
+     * Checks whether a working size of the bootloader has been remembered
+     * @return true : remembered, false : not yet
+     */
+    boolean isKnown() {
+        return mIsKnown;
+    }
+
+    /**
+     * Gets current block size
+     * @return block size in bytes
+     */
+    int getBlockSize() {
+        return mSize;
+    }
+
+    /**
+     * Gets the size which blocks are fitted to
+     * @return unit size in bytes
+     */
+    int getUnitSize() {
+        return mUnitSize;
+    }
+
+    /**
+     * Falls back to a smaller block size
+     * @return true : smaller size is available, false : already minimum
+     */
+    boolean fallback() {
+        if (mSize <= mMinSize) {
+            return false;
+        }
+        int size = mSize / 2;
+        if (size >= mUnitSize) {
+            size -= size % mUnitSize;
+        }
+        mSize = Math.max(size, mMinSize);
+        return true;
+    }
+
+    /**
+     * Restricts block size to the minimum and remembers it
+     */
+    void restrict() {
+        mSize = mMinSize;
+        commit();
+    }
+
+    /**
+     * Remembers current block size as working size of the bootloader
+     */
+    void commit() {
+        synchronized (sWorkingSizes) {
+            sWorkingSizes.put(mKey, mSize);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/*
+ * Persistent CRC32 of each flash page which was written successfully, keyed by USB serial.
+ * An entry is formatted as "<page size>:<crc>,<crc>,...".
+ * Several devices may be programmed at once, so updates reload the file before saving it.
+ */
+class FingerprintCache {
+    private static final String TAG = FingerprintCache.class.getSimpleName();
+
+    private static final Object FILE_LOCK = new Object();
+    private static final int MIN_UNIQUE_SERIAL_LENGTH = 8;
+
+    private File        mFile;
+    private Properties  mProps = new Properties();
+
+    FingerprintCache(File file) {
+        mFile = file;
+        synchronized (FILE_LOCK) {
+            load();
+        }
+    }
+
+    /**
+     * Checks whether a USB serial can tell a device from others.
+     * Arduino AVR core reports an empty serial or a short name of PluggableUSB modules
+     * (e.g. "HIDAF") which is shared by every unit running the same sketch.
+     * @param serial USB serial
+     * @return true if it looks unique to the device
+     */
+    static boolean isUniqueSerial(String serial) {
+        if (serial == null || serial.length() < MIN_UNIQUE_SERIAL_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < serial.length(); i++) {
+            if (Character.isDigit(serial.charAt(i))) {
+                return true; // short names consist of letters only
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the fingerprints of a device
+     * @param serial USB serial of the device
+     * @param pageSize
+     * @return CRC32 of each page, or null if unknown
+     */
+    long[] get(String serial, int pageSize) {
+        String value = mProps.getProperty(serial);
+        if (value == null) {
+            return null;
+        }
+        int index = value.indexOf(':');
+        try {
+            if (index < 0 || Integer.parseInt(value.substring(0, index)) != pageSize) {
+                return null;
+            }
+            String[] items = value.substring(index + 1).split(",");
+            long[] crcs = new long[items.length];
+            for (int i = 0; i < items.length; i++) {
+                crcs[i] = Long.parseLong(items[i], 16);
+            }
+            return crcs;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Broken entry: " + serial);
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the fingerprints of a device and saves them
+     * @param serial USB serial of the device
+     * @param pageSize
+     * @param crcs CRC32 of each page
+     */
+    void put(String serial, int pageSize, long[] crcs) {
+        StringBuilder strBuf = new StringBuilder();
+        strBuf.append(pageSize).append(':');
+        for (int i = 0; i < crcs.length; i++) {
+            if (i > 0) {
+                strBuf.append(',');
+            }
+            strBuf.append(Long.toHexString(crcs[i]));
+        }
+        synchronized (FILE_LOCK) {
+            load();
+            mProps.setProperty(serial, strBuf.toString());
+            save();
+        }
+    }
+
+    /**
+     * Forgets the fingerprints of a device
+     * @param serial USB serial of the device
+     */
+    void remove(String serial) {
+        synchronized (FILE_LOCK) {
+            load();
+            if (mProps.remove(serial) != null) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * Calculates CRC32 of each page. The last page is padded with 0xFF like the bootloader does.
+     * @param image image
+     * @param length length of the image
+     * @param pageSize
+     * @return CRC32 of each page
+     */
+    static long[] hashPages(SparseImage image, int length, int pageSize) {
+        long[] crcs = new long[(length + pageSize - 1) / pageSize];
+        CRC32 crc = new CRC32();
+        byte[] page = new byte[pageSize];
+        for (int i = 0; i < crcs.length; i++) {
+            int addr = i * pageSize;
+            int pageLength = Math.min(pageSize, length - addr);
+            image.copyTo(addr, page, 0, pageLength);
+            Arrays.fill(page, pageLength, pageSize, SparseImage.ERASED_VALUE);
+            crc.reset();
+            crc.update(page, 0, pageSize);
+            crcs[i] = crc.getValue();
+        }
+        return crcs;
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            mProps.clear();
+            mProps.load(in);
+        } catch (IOException e) {
+            Log.w(TAG, e.toString());
+            mProps.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+        }
+    }
+
+    private void save() {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile);
+            mProps.store(out, null);
+        } catch (IOException e) {
+            Log.w(TAG, e.toString());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+        }
+    }
+}
@@ -19,75 +19,74 @@
 
 package com.physicaloid.lib.programmer.avr;
 
-import cz.jaybee.intelhex.IntelHexParser;
-import cz.jaybee.intelhex.IntelHexParserRun;
-
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class IntelHexFileToBuf {
 
     @SuppressWarnings("unused")
     private static final String TAG = IntelHexFileToBuf.class.getSimpleName();
 
-    IntelHexParser ihp;
-    IntelHexParserRun ihpd;
+    private SparseImage mImage;
 
     public IntelHexFileToBuf() {
     }
 
-    public long getByteLength() {
-        if(ihpd != null) {
-            return ihpd.getTotalBufLength();
-        } else {
-            return 0;
-        }
+    public SparseImage getImage() {
+        return mImage;
+    }
+
+    public void parse(String filePath) throws FileNotFoundException, IOException, Exception {
+        parse(new File(filePath));
     }
 
-    public void getHexData(byte[] buf) {
-        if(ihpd != null) {
-            ihpd.getBufData(buf);
+    /**
+     * Parses a file which is mapped into memory. Large files are parsed on all cores.
+     * @param file
+     * @throws IOException
+     */
+    public void parse(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
         }
     }
 
-    public void parse(String filePath) throws FileNotFoundException, IOException, Exception {
-        InputStream is = null;
-        is = new FileInputStream(filePath);
-        parse(is);
+    /**
+     * Parses HEX data from the position to the limit of a buffer.
+     * Large data is parsed on all cores.
+     * @param buf
+     * @throws IOException
+     */
+    public void parse(ByteBuffer buf) throws IOException {
+        SparseImage image = new SparseImage();
+        new IntelHexReader().parse(buf, image, Runtime.getRuntime().availableProcessors());
+        image.finish();
+        mImage = image;
     }
 
     public void parse(InputStream is) throws FileNotFoundException, IOException, Exception {
 
-        ihp = new IntelHexParser(is);
-        ihpd = new IntelHexParserRun(0, 0xFFFF);
-        ihp.setDataListener(ihpd);
-
-        ihp.parse();
-
-        is.close();
-
+        try {
+            parse(IntelHexReader.readFully(is));
+        } finally {
+            is.close();
+        }
     }
 
-    public static void convert(byte[] buf, OutputStream os) throws IOException {
-        StringBuffer strBuf = new StringBuffer();
-        int addr = 0;
-        int totalLength = buf.length;
-        while (addr < totalLength) {
-            int length = Math.min(totalLength - addr, 16);
-            int checksum = length + (addr & 0xFF) + (addr >> 8 & 0xFF);
-            strBuf.append(String.format(":%02X%04X00", length, addr));
-            for (int i = 0; i < length; i++, addr++) {
-                byte val = buf[addr];
-                strBuf.append(String.format("%02X", val));
-                checksum += val;
-            }
-            strBuf.append(String.format("%02X\n", -checksum & 0xFF));
-        }
-        strBuf.append(":00000001FF\n");
-        os.write(strBuf.toString().getBytes());
+    public static void convert(SparseImage image, OutputStream os) throws IOException {
+        IntelHexWriter writer = new IntelHexWriter(os);
+        image.writeTo(writer);
+        writer.finish();
     }
 
 }
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Intel HEX decoder which scans raw bytes with a lookup table.
+ * Checksums are verified inline and data records are passed to a sink without allocation.
+ */
+public class IntelHexReader {
+
+    private static final int TYPE_DATA      = 0x00;
+    private static final int TYPE_EOF       = 0x01;
+    private static final int TYPE_EXT_SEG   = 0x02;
+    private static final int TYPE_START_SEG = 0x03;
+    private static final int TYPE_EXT_LIN   = 0x04;
+    private static final int TYPE_START_LIN = 0x05;
+
+    private static final int MAX_RECORD_LENGTH = 5 + 0xFF; // length, address, type, data, checksum
+
+    private static final int MIN_CHUNK_SIZE     = 64 * 1024;
+    private static final int CHUNKS_PER_THREAD  = 4;
+
+    private static final byte[] NIBBLES = new byte[256]; // -1 : not a hex digit
+
+    static {
+        for (int i = 0; i < NIBBLES.length; i++) {
+            NIBBLES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            NIBBLES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLES['A' + i] = (byte) (10 + i);
+            NIBBLES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private byte[]  mRecord = new byte[MAX_RECORD_LENGTH];
+    private int     mUpperAddr;
+    private int     mRecordIdx;
+    private boolean mIsEof;
+
+    /**
+     * Decodes whole HEX data in a byte array
+     * @param src byte array
+     * @param offset start position in src
+     * @param length length of HEX data
+     * @param sink receiver of data records (finish() isn't called)
+     * @throws IOException if HEX data is broken
+     */
+    public void parse(byte[] src, int offset, int length, MemorySink sink) throws IOException {
+        parse(ByteBuffer.wrap(src, offset, length), sink);
+    }
+
+    /**
+     * Decodes whole HEX data from the position to the limit of a buffer.
+     * The position of the buffer isn't changed.
+     * @param src heap or direct buffer
+     * @param sink receiver of data records (finish() isn't called)
+     * @throws IOException if HEX data is broken
+     */
+    public void parse(ByteBuffer src, MemorySink sink) throws IOException {
+        mUpperAddr = 0;
+        mRecordIdx = 0;
+        mIsEof = false;
+        parseRange(src, src.position(), src.limit(), sink);
+        if (!mIsEof) {
+            throw new IOException("No eof at the end of file");
+        }
+    }
+
+    /**
+     * Decodes whole HEX data on several threads.
+     * The data is split into chunks at record boundaries, and a sequential pre-pass finds
+     * the extended address in effect at the top of each chunk. Small data is decoded at once.
+     * @param src heap or direct buffer, which is read only by absolute positions
+     * @param sink receiver of data records in the order of the file (finish() isn't called)
+     * @param threads number of threads
+     * @throws IOException if HEX data is broken
+     */
+    public void parse(final ByteBuffer src, MemorySink sink, int threads) throws IOException {
+        int start = src.position();
+        int limit = src.limit();
+        int chunkCount = Math.min(threads * CHUNKS_PER_THREAD, (limit - start) / MIN_CHUNK_SIZE);
+        if (threads <= 1 || chunkCount <= 1) {
+            parse(src, sink);
+            return;
+        }
+        List<Chunk> chunks = split(src, start, limit, chunkCount);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>(chunks.size());
+            for (final Chunk chunk : chunks) {
+                futures.add(executor.submit(new Callable<Chunk>() {
+                    @Override
+                    public Chunk call() {
+                        chunk.parse(src);
+                        return chunk;
+                    }
+                }));
+            }
+            boolean isEof = false;
+            // Results are taken in the order of the file, so the error which the sequential
+            // decoding would meet first is raised
+            for (Future<Chunk> future : futures) {
+                Chunk chunk = future.get();
+                if (isEof && chunk.mRecordCount > 0) {
+                    throw new IOException("Data after eof (" + (chunk.mFirstRecordIdx + 1) + ")");
+                }
+                if (chunk.mError != null) {
+                    throw chunk.mError;
+                }
+                chunk.mImage.writeTo(sink);
+                chunk.mImage = null;
+                isEof |= chunk.mIsEof;
+            }
+            if (!isEof) {
+                throw new IOException("No eof at the end of file");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits HEX data into chunks which start at records.
+     * Only the header of each record is decoded to follow extended address records.
+     */
+    private static List<Chunk> split(ByteBuffer src, int start, int limit, int chunkCount) {
+        List<Chunk> chunks = new ArrayList<Chunk>(chunkCount);
+        int chunkSize = (limit - start + chunkCount - 1) / chunkCount;
+        int nextSplit = start + chunkSize;
+        Chunk chunk = new Chunk(start, 0, 0);
+        int upperAddr = 0;
+        int recordIdx = 0;
+        int pos = start;
+        while (pos < limit) {
+            byte c = src.get(pos);
+            if (c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+                pos++;
+                continue;
+            }
+            if (pos >= nextSplit) {
+                chunk.mEnd = pos;
+                chunks.add(chunk);
+                chunk = new Chunk(pos, upperAddr, recordIdx);
+                nextSplit = pos + chunkSize;
+            }
+            recordIdx++;
+            int length = -1;
+            if (c == ':' && pos + 13 <= limit) {
+                length = hexByte(src, pos + 1);
+                int type = hexByte(src, pos + 7);
+                if (length == 2 && (type == TYPE_EXT_LIN || type == TYPE_EXT_SEG)) {
+                    int hi = hexByte(src, pos + 9);
+                    int lo = hexByte(src, pos + 11);
+                    if ((hi | lo) >= 0) {
+                        upperAddr = (type == TYPE_EXT_LIN) ? (hi << 8 | lo) << 16 : (hi << 8 | lo) << 4;
+                    }
+                }
+            }
+            // Jump to the end of a well-formed record, otherwise look for the end of line
+            int next = pos + 1 + (length + 5) * 2;
+            if (length >= 0 && (next == limit
+                    || (next < limit && (src.get(next) == '\r' || src.get(next) == '\n')))) {
+                pos = next;
+            } else {
+                while (pos < limit && src.get(pos) != '\n') {
+                    pos++;
+                }
+            }
+        }
+        chunk.mEnd = limit;
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    private static int hexByte(ByteBuffer src, int pos) {
+        int hi = NIBBLES[src.get(pos) & 0xFF];
+        int lo = NIBBLES[src.get(pos + 1) & 0xFF];
+        return ((hi | lo) < 0) ? -1 : (hi << 4 | lo);
+    }
+
+    /*
+     * Range of HEX data which is decoded on a worker thread into an image of its own
+     */
+    private static class Chunk {
+        private int         mStart;
+        private int         mEnd;
+        private int         mUpperAddr;
+        private int         mFirstRecordIdx;
+        private SparseImage mImage;
+        private int         mRecordCount;   // including the broken record
+        private boolean     mIsEof;
+        private IOException mError;         // first error in this chunk
+
+        private Chunk(int start, int upperAddr, int firstRecordIdx) {
+            mStart = start;
+            mUpperAddr = upperAddr;
+            mFirstRecordIdx = firstRecordIdx;
+        }
+
+        private void parse(ByteBuffer src) {
+            IntelHexReader reader = new IntelHexReader();
+            reader.mUpperAddr = mUpperAddr;
+            reader.mRecordIdx = mFirstRecordIdx;
+            mImage = new SparseImage();
+            try {
+                reader.parseRange(src, mStart, mEnd, mImage);
+            } catch (IOException e) {
+                mError = e; // raised in the order of chunks, after earlier chunks are checked
+            }
+            mRecordCount = reader.mRecordIdx - mFirstRecordIdx;
+            mIsEof = reader.mIsEof;
+        }
+    }
+
+    private void parseRange(ByteBuffer src, int pos, int limit, MemorySink sink)
+            throws IOException {
+        while (pos < limit) {
+            byte c = src.get(pos);
+            if (c == '\n' || c == '\r' || c == ' ' || c == '\t') {
+                pos++;
+                continue;
+            }
+            mRecordIdx++;
+            if (mIsEof) {
+                throw new IOException("Data after eof (" + mRecordIdx + ")");
+            }
+            if (c != ':') {
+                throw new IOException("Invalid Intel HEX record (" + mRecordIdx + ")");
+            }
+            pos = parseRecord(src, pos + 1, limit, sink);
+        }
+    }
+
+    /**
+     * Decodes whole HEX data from a stream
+     * @param in input stream which is read to the end
+     * @param sink receiver of data records (finish() isn't called)
+     * @throws IOException
+     */
+    public void parse(InputStream in, MemorySink sink) throws IOException {
+        parse(readFully(in), sink);
+    }
+
+    /**
+     * Reads a stream to the end into a direct buffer, which is outside of Java heap
+     * @param in input stream
+     * @return buffer from 0 to the read length
+     * @throws IOException
+     */
+    static ByteBuffer readFully(InputStream in) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(in.available(), 8 * 1024));
+        while (channel.read(buf) >= 0) {
+            if (!buf.hasRemaining()) {
+                ByteBuffer newBuf = ByteBuffer.allocateDirect(buf.capacity() * 2);
+                buf.flip();
+                newBuf.put(buf);
+                buf = newBuf;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * @return position after the record
+     */
+    private int parseRecord(ByteBuffer src, int pos, int limit, MemorySink sink)
+            throws IOException {
+        byte[] record = mRecord;
+        int count = 0;
+        int sum = 0;
+        int total = MAX_RECORD_LENGTH;
+        while (count < total) {
+            if (pos + 1 >= limit) {
+                throw new IOException("Invalid record length (" + mRecordIdx + ")");
+            }
+            int hi = NIBBLES[src.get(pos) & 0xFF];
+            int lo = NIBBLES[src.get(pos + 1) & 0xFF];
+            if ((hi | lo) < 0) {
+                throw new IOException("Invalid record length (" + mRecordIdx + ")");
+            }
+            int val = hi << 4 | lo;
+            record[count++] = (byte) val;
+            sum += val;
+            pos += 2;
+            if (count == 1) {
+                total = val + 5;
+            }
+        }
+        if (pos < limit) {
+            byte c = src.get(pos);
+            if (c != '\r' && c != '\n') {
+                throw new IOException("Invalid record length (" + mRecordIdx + ")");
+            }
+        }
+        if ((sum & 0xFF) != 0) {
+            throw new IOException("Invalid checksum (" + mRecordIdx + ")");
+        }
+
+        int length = record[0] & 0xFF;
+        int addr = (record[1] & 0xFF) << 8 | (record[2] & 0xFF);
+        int type = record[3] & 0xFF;
+        switch (type) {
+        case TYPE_DATA:
+            addr += mUpperAddr; // segment base or linear upper address plus offset
+            if (addr < 0 || addr + length < 0) {
+                throw new IOException("Address out of range (" + mRecordIdx + ")");
+            }
+            if (sink != null) {
+                sink.write(addr, record, 4, length);
+            }
+            break;
+        case TYPE_EOF:
+            mIsEof = true;
+            break;
+        case TYPE_EXT_SEG:
+        case TYPE_EXT_LIN:
+            if (length != 2) {
+                throw new IOException("Invalid " + ((type == TYPE_EXT_LIN) ? "EXT_LIN" : "EXT_SEG")
+                        + " record (" + mRecordIdx + ")");
+            }
+            int upper = (record[4] & 0xFF) << 8 | (record[5] & 0xFF);
+            mUpperAddr = (type == TYPE_EXT_LIN) ? upper << 16 : upper << 4;
+            break;
+        case TYPE_START_SEG:
+        case TYPE_START_LIN:
+            throw new IOException(((type == TYPE_START_LIN) ? "START_LIN" : "START_SEG")
+                    + " record not implemented (" + mRecordIdx + ")");
+        default:
+            throw new IOException("Unsupported record type " + type + " (" + mRecordIdx + ")");
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Incremental Intel HEX encoder.
+ * Records are encoded with a lookup table into a reusable buffer which is flushed in chunks.
+ */
+public class IntelHexWriter implements MemorySink {
+
+    private static final int RECORD_LENGTH = 16;
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 1 + (5 + RECORD_LENGTH) * 2 + 1;
+
+    private static final int TYPE_DATA      = 0x00;
+    private static final int TYPE_EOF       = 0x01;
+    private static final int TYPE_EXT_LIN   = 0x04;
+
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    private OutputStream    mOut;
+    private byte[]          mChunk = new byte[CHUNK_SIZE];
+    private int             mChunkLength;
+    private byte[]          mRecord = new byte[RECORD_LENGTH];
+    private int             mRecordAddr;
+    private int             mRecordLength;
+    private int             mUpperAddr;
+    private boolean         mOmitErased;
+
+    public IntelHexWriter(OutputStream out) {
+        mOut = out;
+    }
+
+    /**
+     * Sets whether records filled with 0xFF are omitted
+     * @param omitErased true : omitted, false : written (default)
+     */
+    public void setOmitErased(boolean omitErased) {
+        mOmitErased = omitErased;
+    }
+
+    @Override
+    public void write(int addr, byte[] buf, int offset, int length) throws IOException {
+        if (mRecordLength > 0 && addr != mRecordAddr + mRecordLength) {
+            flushRecord();
+        }
+        for (int i = 0; i < length; i++) {
+            if (mRecordLength == 0) {
+                mRecordAddr = addr + i;
+            }
+            mRecord[mRecordLength++] = buf[offset + i];
+            if (mRecordLength == RECORD_LENGTH || ((addr + i + 1) % RECORD_LENGTH) == 0) {
+                flushRecord();
+            }
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        flushRecord();
+        putRecord(0, TYPE_EOF, null, 0);
+        mOut.write(mChunk, 0, mChunkLength);
+        mChunkLength = 0;
+        mOut.flush();
+    }
+
+    private void flushRecord() throws IOException {
+        int length = mRecordLength;
+        if (length == 0) {
+            return;
+        }
+        mRecordLength = 0;
+        if (mOmitErased && isErased(mRecord, length)) {
+            return;
+        }
+        int upper = mRecordAddr >>> 16; // records never cross 64 KB boundaries
+        if (upper != mUpperAddr) {
+            byte[] ext = { (byte) (upper >> 8), (byte) upper };
+            putRecord(0, TYPE_EXT_LIN, ext, ext.length);
+            mUpperAddr = upper;
+        }
+        putRecord(mRecordAddr & 0xFFFF, TYPE_DATA, mRecord, length);
+    }
+
+    private void putRecord(int addr, int type, byte[] data, int length) throws IOException {
+        if (mChunkLength + MAX_LINE_LENGTH > mChunk.length) {
+            mOut.write(mChunk, 0, mChunkLength);
+            mChunkLength = 0;
+        }
+        byte[] chunk = mChunk;
+        int pos = mChunkLength;
+        chunk[pos++] = ':';
+        pos = putByte(chunk, pos, length);
+        pos = putByte(chunk, pos, addr >> 8);
+        pos = putByte(chunk, pos, addr);
+        pos = putByte(chunk, pos, type);
+        int checksum = length + (addr >> 8) + addr + type;
+        for (int i = 0; i < length; i++) {
+            int val = data[i];
+            pos = putByte(chunk, pos, val);
+            checksum += val;
+        }
+        pos = putByte(chunk, pos, -checksum);
+        chunk[pos++] = '\n';
+        mChunkLength = pos;
+    }
+
+    private static int putByte(byte[] chunk, int pos, int val) {
+        chunk[pos] = HEX_DIGITS[(val >> 4) & 0x0F];
+        chunk[pos + 1] = HEX_DIGITS[val & 0x0F];
+        return pos + 2;
+    }
+
+    private static boolean isErased(byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] != SparseImage.ERASED_VALUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+import java.io.IOException;
+
+/*
+ * Receives memory contents block by block while they are read from a device or decoded
+ */
+public interface MemorySink {
+
+    /**
+     * Writes a block of memory contents
+     * @param addr memory address of the block
+     * @param buf byte array
+     * @param offset start position in buf
+     * @param length length of the block
+     * @throws IOException
+     */
+    public void write(int addr, byte[] buf, int offset, int length) throws IOException;
+
+    /**
+     * Finishes writing. The underlying stream isn't closed.
+     * @throws IOException
+     */
+    public void finish() throws IOException;
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+import java.io.File;
+
+public class ProgramConfig {
+
+    /** Reads the current memory first and writes only blocks which differ */
+    public boolean deltaWrite;
+
+    /** Number of blocks which are sent before their acknowledgements arrive (1 : no pipelining) */
+    public int pipelineDepth;
+
+    /**
+     * Erases whole flash first and skips pages filled with 0xFF.
+     * Delta write and remembered fingerprints take precedence, so this is ignored
+     * (with a warning in the log) when either of them selects the pages to write.
+     */
+    public boolean skipErasedPages;
+
+    /** Reads back written memory and compares it page by page */
+    public boolean verify;
+
+    /** Verifies only the pages which were actually written */
+    public boolean verifyChangedOnly;
+
+    /**
+     * File to remember the pages written to each device (null : not used).
+     * It is used only for a device whose USB serial is unique. Pages whose fingerprints match
+     * are skipped without reading them back once the spot check has passed.
+     */
+    public File fingerprintCacheFile;
+
+    /** Number of random pages which are read to check that remembered pages are still valid */
+    public int spotCheckPages;
+
+    /** Omits records filled with 0xFF when memory is downloaded to HEX file */
+    public boolean omitErasedRecords;
+
+    public ProgramConfig() {
+        this.deltaWrite     = false;
+        this.pipelineDepth  = 1;
+        this.spotCheckPages = 2;
+    }
+
+    public ProgramConfig(boolean deltaWrite, int pipelineDepth) {
+        this.deltaWrite     = deltaWrite;
+        this.pipelineDepth  = pipelineDepth;
+        this.spotCheckPages = 2;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Memory image made of sorted extents which don't touch each other.
+ * Writes which overlap or adjoin existing extents are merged into them, later data winning.
+ * Addresses without data read as 0xFF like erased memory.
+ * An extent may be backed by a ByteBuffer (e.g. mapped file) which is copied only when modified.
+ */
+public class SparseImage implements MemorySink {
+
+    public static final byte ERASED_VALUE = (byte) 0xFF;
+
+    private static final int BUFFER_BLOCK_SIZE = 4 * 1024;
+
+    private int         mCount;
+    private int[]       mStarts = new int[4];
+    private int[]       mLengths = new int[4];
+    private byte[][]    mData = new byte[4][];
+    private ByteBuffer[] mBuffers = new ByteBuffer[4]; // used where mData is null
+
+    public SparseImage() {
+    }
+
+    /**
+     * Creates an image which has a byte array at address 0. The array isn't copied.
+     * @param buf byte array
+     * @return SparseImage
+     */
+    public static SparseImage wrap(byte[] buf) {
+        SparseImage image = new SparseImage();
+        if (buf.length > 0) {
+            image.mStarts[0] = 0;
+            image.mLengths[0] = buf.length;
+            image.mData[0] = buf;
+            image.mCount = 1;
+        }
+        return image;
+    }
+
+    /**
+     * Creates an image which has the remaining bytes of a buffer at address 0.
+     * The contents aren't copied, so the buffer mustn't be modified while the image is used.
+     * @param buf heap, direct or mapped buffer
+     * @return SparseImage
+     */
+    public static SparseImage wrap(ByteBuffer buf) {
+        SparseImage image = new SparseImage();
+        if (buf.remaining() > 0) {
+            image.mStarts[0] = 0;
+            image.mLengths[0] = buf.remaining();
+            image.mBuffers[0] = buf.slice();
+            image.mCount = 1;
+        }
+        return image;
+    }
+
+    @Override
+    public void write(int addr, byte[] buf, int offset, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        if (addr < 0 || addr + length < 0) {
+            throw new IOException("Address out of range (" + Integer.toHexString(addr) + ")");
+        }
+        int last = mCount - 1;
+        if (last >= 0 && addr == getExtentEnd(last)) {
+            append(last, buf, offset, length); // usual case of records in ascending order
+            return;
+        }
+
+        int end = addr + length;
+        int first = findExtent(addr);               // first extent which ends at or after addr
+        int over = first;
+        while (over < mCount && mStarts[over] <= end) {
+            over++;                                 // extents [first, over) touch the range
+        }
+        if (first == over) {
+            insert(first, addr, buf, offset, length);
+            return;
+        }
+
+        int mergedStart = Math.min(addr, mStarts[first]);
+        int mergedEnd = Math.max(end, getExtentEnd(over - 1));
+        byte[] merged = new byte[mergedEnd - mergedStart];
+        Arrays.fill(merged, ERASED_VALUE);
+        for (int i = first; i < over; i++) {
+            copyExtent(i, 0, merged, mStarts[i] - mergedStart, mLengths[i]);
+        }
+        System.arraycopy(buf, offset, merged, addr - mergedStart, length);
+        mStarts[first] = mergedStart;
+        mLengths[first] = merged.length;
+        mData[first] = merged;
+        mBuffers[first] = null;
+        remove(first + 1, over);
+    }
+
+    /**
+     * Releases spare capacity of extents
+     */
+    @Override
+    public void finish() {
+        for (int i = 0; i < mCount; i++) {
+            if (mData[i] != null && mData[i].length > mLengths[i]) {
+                mData[i] = Arrays.copyOf(mData[i], mLengths[i]);
+            }
+        }
+    }
+
+    public int getExtentCount() {
+        return mCount;
+    }
+
+    public int getExtentStart(int index) {
+        return mStarts[index];
+    }
+
+    public int getExtentEnd(int index) {
+        return mStarts[index] + mLengths[index];
+    }
+
+    /**
+     * Gets the end address of the image
+     * @return address next to the last data, 0 if empty
+     */
+    public int getEnd() {
+        return (mCount > 0) ? getExtentEnd(mCount - 1) : 0;
+    }
+
+    /**
+     * Gets the total length of data without gaps
+     * @return length in bytes
+     */
+    public int getDataLength() {
+        int length = 0;
+        for (int i = 0; i < mCount; i++) {
+            length += mLengths[i];
+        }
+        return length;
+    }
+
+    /**
+     * Checks whether a region has any data
+     * @param addr start address
+     * @param length length of the region
+     * @return true : some data, false : only gaps
+     */
+    public boolean hasData(int addr, int length) {
+        if (length <= 0) {
+            return false;
+        }
+        int index = findExtent(addr + 1); // first extent which ends after addr
+        return index < mCount && mStarts[index] < addr + length;
+    }
+
+    /**
+     * Copies a region into a byte array. Gaps are filled with 0xFF.
+     * @param addr start address
+     * @param dst byte array
+     * @param offset start position in dst
+     * @param length length of the region
+     */
+    public void copyTo(int addr, byte[] dst, int offset, int length) {
+        int end = addr + length;
+        int index = findExtent(addr + 1);
+        while (addr < end) {
+            if (index < mCount && mStarts[index] <= addr) {
+                int runEnd = Math.min(end, getExtentEnd(index));
+                copyExtent(index, addr - mStarts[index], dst, offset, runEnd - addr);
+                offset += runEnd - addr;
+                addr = runEnd;
+                index++;
+            } else {
+                int gapEnd = (index < mCount) ? Math.min(end, mStarts[index]) : end;
+                Arrays.fill(dst, offset, offset + gapEnd - addr, ERASED_VALUE);
+                offset += gapEnd - addr;
+                addr = gapEnd;
+            }
+        }
+    }
+
+    /**
+     * Compares a region with a byte array. Gaps match 0xFF.
+     * @param addr start address
+     * @param src byte array
+     * @param offset start position in src
+     * @param length length of the region
+     * @return true : same, false : different
+     */
+    public boolean matches(int addr, byte[] src, int offset, int length) {
+        int end = addr + length;
+        int index = findExtent(addr + 1);
+        while (addr < end) {
+            if (index < mCount && mStarts[index] <= addr) {
+                int runEnd = Math.min(end, getExtentEnd(index));
+                byte[] data = mData[index];
+                ByteBuffer buffer = mBuffers[index];
+                for (int i = addr - mStarts[index], n = runEnd - mStarts[index]; i < n; i++) {
+                    if (((data != null) ? data[i] : buffer.get(i)) != src[offset++]) {
+                        return false;
+                    }
+                }
+                addr = runEnd;
+                index++;
+            } else {
+                int gapEnd = (index < mCount) ? Math.min(end, mStarts[index]) : end;
+                for (; addr < gapEnd; addr++) {
+                    if (src[offset++] != ERASED_VALUE) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a region reads as 0xFF only
+     * @param addr start address
+     * @param length length of the region
+     * @return true : erased, false : has other values
+     */
+    public boolean isErased(int addr, int length) {
+        int end = addr + length;
+        for (int index = findExtent(addr + 1); index < mCount && mStarts[index] < end; index++) {
+            byte[] data = mData[index];
+            ByteBuffer buffer = mBuffers[index];
+            int from = Math.max(addr, mStarts[index]) - mStarts[index];
+            int to = Math.min(end, getExtentEnd(index)) - mStarts[index];
+            for (int i = from; i < to; i++) {
+                if (((data != null) ? data[i] : buffer.get(i)) != ERASED_VALUE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes each extent to a sink in ascending order
+     * @param sink receiver (finish() isn't called)
+     * @throws IOException
+     */
+    public void writeTo(MemorySink sink) throws IOException {
+        byte[] block = null;
+        for (int i = 0; i < mCount; i++) {
+            if (mData[i] != null) {
+                sink.write(mStarts[i], mData[i], 0, mLengths[i]);
+                continue;
+            }
+            if (block == null) {
+                block = new byte[BUFFER_BLOCK_SIZE];
+            }
+            for (int from = 0; from < mLengths[i]; from += block.length) {
+                int length = Math.min(block.length, mLengths[i] - from);
+                copyExtent(i, from, block, 0, length);
+                sink.write(mStarts[i] + from, block, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Flattens the image from address 0
+     * @return byte array of getEnd() bytes
+     */
+    public byte[] toByteArray() {
+        byte[] buf = new byte[getEnd()];
+        copyTo(0, buf, 0, buf.length);
+        return buf;
+    }
+
+    /**
+     * Finds the first extent which ends at or after an address
+     */
+    private int findExtent(int addr) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getExtentEnd(mid) < addr) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies a part of an extent. This is safe on several threads for buffer backed extents.
+     */
+    private void copyExtent(int index, int from, byte[] dst, int offset, int length) {
+        if (mData[index] != null) {
+            System.arraycopy(mData[index], from, dst, offset, length);
+        } else {
+            ByteBuffer buffer = mBuffers[index].duplicate();
+            buffer.position(from);
+            buffer.get(dst, offset, length);
+        }
+    }
+
+    private void append(int index, byte[] buf, int offset, int length) {
+        int newLength = mLengths[index] + length;
+        byte[] data = mData[index];
+        if (data == null) { // copy buffer backed extent before modifying it
+            data = new byte[Math.max(newLength, mLengths[index] + (mLengths[index] >> 1))];
+            copyExtent(index, 0, data, 0, mLengths[index]);
+            mData[index] = data;
+            mBuffers[index] = null;
+        }
+        if (newLength > data.length) {
+            data = Arrays.copyOf(data, Math.max(newLength, data.length + (data.length >> 1)));
+            mData[index] = data;
+        }
+        System.arraycopy(buf, offset, data, mLengths[index], length);
+        mLengths[index] = newLength;
+    }
+
+    private void insert(int index, int addr, byte[] buf, int offset, int length) {
+        if (mCount == mStarts.length) {
+            int capacity = mCount * 2;
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+            mData = Arrays.copyOf(mData, capacity);
+            mBuffers = Arrays.copyOf(mBuffers, capacity);
+        }
+        int moved = mCount - index;
+        System.arraycopy(mStarts, index, mStarts, index + 1, moved);
+        System.arraycopy(mLengths, index, mLengths, index + 1, moved);
+        System.arraycopy(mData, index, mData, index + 1, moved);
+        System.arraycopy(mBuffers, index, mBuffers, index + 1, moved);
+        mStarts[index] = addr;
+        mLengths[index] = length;
+        mData[index] = Arrays.copyOfRange(buf, offset, offset + length);
+        mBuffers[index] = null;
+        mCount++;
+    }
+
+    private void remove(int from, int to) {
+        int moved = mCount - to;
+        System.arraycopy(mStarts, to, mStarts, from, moved);
+        System.arraycopy(mLengths, to, mLengths, from, moved);
+        System.arraycopy(mData, to, mData, from, moved);
+        System.arraycopy(mBuffers, to, mBuffers, from, moved);
+        for (int i = mCount - (to - from); i < mCount; i++) {
+            mData[i] = null;
+            mBuffers[i] = null;
+        }
+        mCount -= to - from;
+    }
+}
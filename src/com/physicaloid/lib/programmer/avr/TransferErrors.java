@@ -40,6 +40,7 @@ public enum TransferErrors {
     SIGNATURE       (5,     "Incorrect chip type."),
     OPERATION       (6,     "An unexpected error occurred while reading or writing"),
     OPEN_DEVICE     (7,     "Cannot open device."),
+    VERIFY          (8,     "Written data doesn't match."),
     NO_ERROR        (0, "");
 
     private final int code;
@@ -30,6 +30,7 @@
 
 package com.physicaloid.lib.programmer.avr;
 
+import com.physicaloid.lib.Physicaloid.PageStatisticsCallBack;
 import com.physicaloid.lib.Physicaloid.ProcessCallBack;
 import com.physicaloid.lib.framework.SerialCommunicator;
 
@@ -38,7 +39,11 @@ public abstract class TransferProtocol {
     private static final String TAG = TransferProtocol.class.getSimpleName();
 
     ProcessCallBack callback;
+    ProgramConfig   config;
+    MemorySink      sink;
     AvrTask.Op      operation;
+    int             verifyErrorAddr = -1;
+    long[]          fingerprints;
     public TransferProtocol(){};
 
     public abstract void setSerial(SerialCommunicator comm);
@@ -49,12 +54,37 @@ public abstract class TransferProtocol {
     public abstract int  check_sig_bytes();
     public abstract int  paged_read();
     public abstract int  paged_write();
+    public abstract int  paged_verify();
     public abstract void disable();
 
     public void setCallback(ProcessCallBack callback) {
         this.callback = callback;
     }
 
+    public void setProgramConfig(ProgramConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Gets the address of the first page which didn't match in the last paged_verify()
+     * @return address, or -1 if no mismatch has been found
+     */
+    public int getVerifyErrorAddress() {
+        return verifyErrorAddr;
+    }
+
+    /**
+     * Sets CRC32 of each page which the device is supposed to have
+     * @param fingerprints remembered CRC32, or null if unknown
+     */
+    protected void setFingerprints(long[] fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    protected void setMemorySink(MemorySink sink) {
+        this.sink = sink;
+    }
+
     protected void setOperation(AvrTask.Op operation) {
         this.operation = operation;
     }
@@ -65,6 +95,12 @@ public abstract class TransferProtocol {
         callback.onProcessing(operation, prog);
     }
 
+    // counted in pages of flash, or in bytes of eeprom
+    protected void report_pages(int written, int skipped) {
+        if(!(callback instanceof PageStatisticsCallBack)) return;
+        ((PageStatisticsCallBack) callback).onPageStatistics(operation, written, skipped);
+    }
+
     protected void report_cancel() {
         if(callback == null) return;
         callback.onCancel();
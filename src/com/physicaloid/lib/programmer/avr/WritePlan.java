@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+/*
+ * Runs of pages to be written, in ascending order of address
+ */
+class WritePlan {
+
+    private int[]   mStarts;
+    private int[]   mEnds;
+    private int     mCount;
+    private int     mMaxAddr;
+    private int     mSkippedUnits;
+
+    private WritePlan(int capacity, int maxAddr) {
+        mStarts = new int[capacity];
+        mEnds = new int[capacity];
+        mMaxAddr = maxAddr;
+    }
+
+    /**
+     * Builds a plan from an image
+     * @param image image
+     * @param maxAddr end of the image
+     * @param unitSize page size
+     * @param changed flags of pages which differ from current memory, null means all
+     * @param skipErased true if pages filled with 0xFF (including pages without data)
+     *                   needn't be written
+     * @return plan
+     */
+    static WritePlan build(SparseImage image, int maxAddr, int unitSize, boolean[] changed,
+            boolean skipErased) {
+        int units = (maxAddr + unitSize - 1) / unitSize;
+        WritePlan plan = new WritePlan((units + 1) / 2, maxAddr);
+        boolean inRun = false;
+        for (int i = 0; i < units; i++) {
+            int addr = i * unitSize;
+            int length = Math.min(unitSize, maxAddr - addr);
+            boolean needed = (changed == null || changed[i])
+                    && !(skipErased && image.isErased(addr, length));
+            if (needed && !inRun) {
+                plan.mStarts[plan.mCount] = addr;
+            } else if (!needed) {
+                if (inRun) {
+                    plan.mEnds[plan.mCount++] = addr;
+                }
+                plan.mSkippedUnits++;
+            }
+            inRun = needed;
+        }
+        if (inRun) {
+            plan.mEnds[plan.mCount++] = maxAddr;
+        }
+        return plan;
+    }
+
+    int getRunCount() {
+        return mCount;
+    }
+
+    int getSkippedUnits() {
+        return mSkippedUnits;
+    }
+
+    /**
+     * Gets the first address to be written at or after an address
+     * @param addr
+     * @return address, or end of the image if nothing remains
+     */
+    int nextAddr(int addr) {
+        int index = findRun(addr);
+        if (index >= mCount) {
+            return mMaxAddr;
+        }
+        return Math.max(addr, mStarts[index]);
+    }
+
+    /**
+     * Gets the end of the run which contains an address
+     * @param addr address returned by nextAddr()
+     * @return end address of the run
+     */
+    int runEnd(int addr) {
+        int index = findRun(addr);
+        return (index < mCount) ? mEnds[index] : mMaxAddr;
+    }
+
+    /**
+     * Finds the first run which ends after an address
+     */
+    private int findRun(int addr) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mEnds[mid] <= addr) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
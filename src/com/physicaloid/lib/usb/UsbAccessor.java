@@ -22,8 +22,10 @@ package com.physicaloid.lib.usb;
 import com.obnsoft.arduboyutil.BuildConfig;
 
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
@@ -32,6 +34,11 @@ import android.hardware.usb.UsbManager;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
 /*
  * USB Hierarchy Accessor
  *  Enum singleton pattern
@@ -45,11 +52,17 @@ public enum UsbAccessor {
 
     private UsbManager mManager = null;
     private PendingIntent mPermissionIntent = null;
+    private BroadcastReceiver mTopologyReceiver = null;
+    private volatile UsbTopology mTopology = null; // null : needs enumeration
 
     private SparseArray<UsbDeviceConnection> mConnection;
+    private SparseArray<String> mChannelDevice; // device name opened by each channel
+    private HashMap<String, String> mDeviceSerial; // USB serial read by opening each device
 
     private UsbAccessor() {
         mConnection = new SparseArray<UsbDeviceConnection>();
+        mChannelDevice = new SparseArray<String>();
+        mDeviceSerial = new HashMap<String, String>();
     }
 
     /**
@@ -65,12 +78,97 @@ public enum UsbAccessor {
         if(mPermissionIntent == null) {
             mPermissionIntent = PendingIntent.getBroadcast(context, 0, new Intent("USB_PERMISSION"), 0);
         }
+
+        if(mTopologyReceiver == null) {
+            mTopologyReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    invalidateTopology();
+                }
+            };
+            IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+            filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+            context.getApplicationContext().registerReceiver(mTopologyReceiver, filter);
+        }
     }
 
     public UsbManager manager() {
         return mManager;
     }
 
+    /**
+     * Gets the snapshot of attached devices. It is enumerated again after attach or detach.
+     * @return UsbTopology
+     */
+    public UsbTopology topology() {
+        UsbTopology topology = mTopology;
+        if(topology == null) {
+            topology = refreshTopology();
+        }
+        return topology;
+    }
+
+    /**
+     * Enumerates attached devices now
+     * @return UsbTopology
+     */
+    public UsbTopology refreshTopology() {
+        UsbTopology topology = UsbTopology.build(mManager);
+        mTopology = topology;
+        synchronized (this) { // forget the serials of detached devices
+            Iterator<String> it = mDeviceSerial.keySet().iterator();
+            while(it.hasNext()) {
+                if(topology.findByName(it.next()) == null) it.remove();
+            }
+        }
+        if(DEBUG_SHOW){ Log.d(TAG, "Enumerated " + topology.size() + " device(s)"); }
+        return topology;
+    }
+
+    /**
+     * Discards the snapshot of attached devices.
+     * ACTION_USB_DEVICE_ATTACHED is delivered only to activities, so they should call this.
+     */
+    public void invalidateTopology() {
+        mTopology = null;
+    }
+
+    /**
+     * Gets attached devices with VID and PIDs
+     * @param vid vid
+     * @param pids pids (null : any)
+     * @return list of UsbDevice
+     */
+    public List<UsbDevice> devices(int vid, int[] pids) {
+        ArrayList<UsbDevice> devices = new ArrayList<UsbDevice>();
+        UsbTopology topology = topology();
+        if(pids == null) {
+            for (UsbTopology.Device dev : topology.find(vid)) {
+                devices.add(dev.getDevice());
+            }
+        } else {
+            for (int pid : pids) {
+                for (UsbTopology.Device dev : topology.find(vid, pid)) {
+                    devices.add(dev.getDevice());
+                }
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Gets an attached device by USB serial which was read when it was opened
+     * @param serial
+     * @return Device or null
+     */
+    public synchronized UsbTopology.Device findBySerial(String serial) {
+        if(serial == null) return null;
+        for(UsbTopology.Device dev : topology().getDevices()) {
+            if(serial.equals(mDeviceSerial.get(dev.getName()))) return dev;
+        }
+        return null;
+    }
+
     /**
      * Gets UsbDevice by a hierarchy device number
      * @param devNum hierarchy device number
@@ -78,25 +176,22 @@ public enum UsbAccessor {
      */
     public UsbDevice device(int devNum) {
         if(mManager == null || mPermissionIntent == null) return null;
-        if(mManager.getDeviceList().size() <= devNum) return null;
-
-        int count=0;
-        for (UsbDevice device : mManager.getDeviceList().values()) {
-            if(DEBUG_SHOW){ Log.d(TAG, "Device("+count+") : " + device.toString()); }
-
-            if(count == devNum) {
-                getPermission(device);
-                if (!mManager.hasPermission(device)) {
-                    if(DEBUG_SHOW){ Log.d(TAG, "Doesn't have permission device("+count+") : " + device.toString()); }
-                    return null;
-                } else {
-                    return device;
-                }
-            }
-            count++;
+        UsbTopology.Device dev = topology().get(devNum);
+        if(dev == null) {
+            if(DEBUG_SHOW){ Log.d(TAG, "Cannot find device("+devNum+")"); }
+            return null;
         }
-        if(DEBUG_SHOW){ Log.d(TAG, "Cannot find device("+devNum+")"); }
-        return null;
+        return permittedDevice(dev);
+    }
+
+    private UsbDevice permittedDevice(UsbTopology.Device dev) {
+        UsbDevice device = dev.getDevice();
+        getPermission(device);
+        if (!mManager.hasPermission(device)) {
+            if(DEBUG_SHOW){ Log.d(TAG, "Doesn't have permission device("+dev.getDevNum()+") : " + device.toString()); }
+            return null;
+        }
+        return device;
     }
 
     /**
@@ -106,18 +201,9 @@ public enum UsbAccessor {
      * @return UsbInterface or null
      */
     public UsbInterface intface(int devNum, int intfNum) {
-        UsbDevice dev = device(devNum);
+        UsbTopology.Device dev = topology().get(devNum);
         if(dev == null) { return null; }
-
-        int devCount = dev.getInterfaceCount();
-        for(int i=0; i<devCount; i++) {
-            if(i==intfNum) {
-                if(DEBUG_SHOW){ Log.d(TAG, "Interface("+devNum+","+intfNum+") : " + dev.getInterface(i).toString()); }
-                return dev.getInterface(i);
-            }
-        }
-        if(DEBUG_SHOW){ Log.d(TAG, "Cannot find interface("+devNum+","+intfNum+")"); }
-        return null;
+        return dev.getInterface(intfNum);
     }
 
     /**
@@ -128,30 +214,44 @@ public enum UsbAccessor {
      * @return UsbEndpoint or null
      */
     public UsbEndpoint endpoint(int devNum, int intfNum, int epNum) {
-        UsbInterface intf = intface(devNum, intfNum);
-        if(intf == null) {return null;}
-
-        int epCount = intf.getEndpointCount();
-        for(int i=0; i<epCount; i++) {
-            if(i==epNum) {
-                if(DEBUG_SHOW){ Log.d(TAG, "Endpoint("+devNum+","+intfNum+","+epNum+") : " + intf.getEndpoint(i).toString()); }
-                return intf.getEndpoint(i);
-            }
-        }
-        if(DEBUG_SHOW){ Log.d(TAG, "Cannot find endpoint("+devNum+","+intfNum+","+epNum+")"); }
-        return null;
+        UsbTopology.Device dev = topology().get(devNum);
+        if(dev == null) { return null; }
+        return dev.getEndpoint(intfNum, epNum);
     }
 
     /**
-     * Gets UsbDeviceConnection by a hierarchy device number
-     * @param devNum hierarchy device number
+     * Gets UsbDeviceConnection by a channel number
+     * @param ch channel number
      * @return UsbDeviceConnection or null
      */
-    public UsbDeviceConnection connection(int ch) {
-        if(ch >= mConnection.size()) { return null; }
+    public synchronized UsbDeviceConnection connection(int ch) {
         return mConnection.get(ch);
     }
 
+    /**
+     * Check whether a device is opened by any channel or not
+     * @param deviceName name of UsbDevice
+     * @return true:opened, false:not opened
+     */
+    public synchronized boolean deviceIsOpened(String deviceName) {
+        for(int i=0; i < mChannelDevice.size(); i++) {
+            if(mChannelDevice.valueAt(i).equals(deviceName)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the smallest channel number which isn't used
+     * @return channel number
+     */
+    public synchronized int freeChannel() {
+        int ch = 0;
+        while(mConnection.get(ch) != null) {
+            ch++;
+        }
+        return ch;
+    }
+
     /**
      * Check whether a device is connected or not
      * @param devNum hierarchy device number
@@ -187,30 +287,55 @@ public enum UsbAccessor {
      * @return UsbDeviceConnection or null
      */
     public boolean openDevice(int devNum, int intfNum, int ch) {
-        UsbDevice dev = device(devNum);
+        UsbTopology.Device dev = topology().get(devNum);
         if(dev == null) { return false; }
-        UsbDeviceConnection con = mManager.openDevice(dev);
+        return openDevice(dev, intfNum, ch);
+    }
+
+    /**
+     * Connect a USB device in the snapshot by a hierarchy interface number
+     * @param dev device in the snapshot
+     * @param intfNum hierarchy interface number
+     * @param ch channel number
+     * @return UsbDeviceConnection or null
+     */
+    public synchronized boolean openDevice(UsbTopology.Device dev, int intfNum, int ch) {
+        if(mManager == null || mPermissionIntent == null) return false;
+        UsbDevice device = permittedDevice(dev);
+        if(device == null) { return false; }
+        UsbDeviceConnection con = mManager.openDevice(device);
         if(con == null) { return false; }
-        if(con.claimInterface(intface(devNum, intfNum), true)) {
+        if(con.claimInterface(dev.getInterface(intfNum), true)) {
             mConnection.put(ch,con);
+            mChannelDevice.put(ch, device.getDeviceName());
+            String serial = con.getSerial();
+            if(serial != null) {
+                mDeviceSerial.put(device.getDeviceName(), serial);
+            }
             return true;
         } else {
-            if(DEBUG_SHOW){ Log.d(TAG, "Cannot get claim interface("+devNum+","+intfNum+")"); }
-            mConnection.remove(devNum);
+            if(DEBUG_SHOW){ Log.d(TAG, "Cannot get claim interface("+dev.getDevNum()+","+intfNum+")"); }
+            con.close();
             return false;
         }
     }
 
-    public boolean close(int devNum) {
-        UsbDeviceConnection con = connection(devNum);
+    /**
+     * Closes the connection of a channel
+     * @param ch channel number
+     * @return true : closed, false : not opened
+     */
+    public synchronized boolean close(int ch) {
+        UsbDeviceConnection con = connection(ch);
         if(con == null) return false;
-        mConnection.remove(devNum);
+        mConnection.remove(ch);
+        mChannelDevice.remove(ch);
         con.close();
-        if(DEBUG_SHOW){ Log.d(TAG, "Close("+devNum+")"); }
+        if(DEBUG_SHOW){ Log.d(TAG, "Close("+ch+")"); }
         return true;
     }
 
-    public boolean closeAll() {
+    public synchronized boolean closeAll() {
         boolean ret = false;
         UsbDeviceConnection con;
         for(int i=0; i < mConnection.size(); i++) {
@@ -221,6 +346,7 @@ public enum UsbAccessor {
             ret = true;
         }
         mConnection.clear();
+        mChannelDevice.clear();
         return ret;
     }
 
@@ -230,9 +356,9 @@ public enum UsbAccessor {
      * @return
      */
     public int getVid(int devNum) {
-        UsbDevice dev = device(devNum);
+        UsbTopology.Device dev = topology().get(devNum);
         if(dev == null) return 0;
-        return dev.getVendorId();
+        return dev.getVid();
     }
 
     /**
@@ -241,19 +367,19 @@ public enum UsbAccessor {
      * @return
      */
     public int getPid(int devNum) {
-        UsbDevice dev = device(devNum);
+        UsbTopology.Device dev = topology().get(devNum);
         if(dev == null) return 0;
-        return dev.getProductId();
+        return dev.getPid();
     }
 
     /**
-     * Gets devNum device's SerialID
-     * @param devNum
+     * Gets the SerialID of the device opened by a channel
+     * @param ch channel number
      * @return
      */
-    public String getSerial(int devNum) {
-        if(connection(devNum) == null) return "";
-        return connection(devNum).getSerial();
+    public synchronized String getSerial(int ch) {
+        if(connection(ch) == null) return "";
+        return connection(ch).getSerial();
     }
 
     /**
@@ -23,10 +23,8 @@ import com.obnsoft.arduboyutil.BuildConfig;
 
 import android.content.Context;
 import android.hardware.usb.UsbConstants;
-import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -39,12 +37,15 @@ public class UsbCdcConnection {
 
     private int mCdcAcmInterfaceNum;
 
+    private int mChannel;
+
     SparseArray<UsbCdcConnectionEp> mUsbConnectionEp;
 
     public UsbCdcConnection(Context context) {
         mUsbAccess = UsbAccessor.INSTANCE;
         mUsbAccess.init(context);
         mCdcAcmInterfaceNum = 0;
+        mChannel = -1;
         mUsbConnectionEp = new SparseArray<UsbCdcConnection.UsbCdcConnectionEp>();
     }
 
@@ -55,51 +56,72 @@ public class UsbCdcConnection {
      * @return true : open successful, false : open fail
      */
     public boolean open(int vid, boolean isCdcAcm) {
-        int devNum  = 0;
-        final int ch = 0;
-        for(UsbDevice usbdev : mUsbAccess.manager().getDeviceList().values()) {
-            if(usbdev.getVendorId() == vid) {
-                for(int intfNum=0; intfNum < usbdev.getInterfaceCount(); intfNum++) {
-
-                    if( (isCdcAcm && (usbdev.getInterface(intfNum).getInterfaceClass() == UsbConstants.USB_CLASS_CDC_DATA))
-                            || !isCdcAcm) {
-                        if(!mUsbAccess.deviceIsConnected(devNum)) {
-                            if(mUsbAccess.openDevice(devNum,intfNum,ch)) {
-                                if(DEBUG_SHOW){ Log.d(TAG, "Find VID:"+Integer.toHexString(usbdev.getVendorId())+", PID:"+Integer.toHexString(usbdev.getProductId())+", DevNum:"+devNum+", IntfNum:"+intfNum); }
-                                mUsbConnectionEp.put(ch,new UsbCdcConnectionEp(mUsbAccess.connection(ch), getEndpoint(devNum, intfNum, UsbConstants.USB_DIR_IN), getEndpoint(devNum, intfNum, UsbConstants.USB_DIR_OUT)));
-                                mCdcAcmInterfaceNum = intfNum;
-                                return true;
-                            }
-                        }
-                    }// end of if
-                } // end of for
-            } // end of if
-            devNum++;
-        } //end of for
+        return open(vid, isCdcAcm, null);
+    }
+
+    /**
+     * Open CDC-ACM device with VID on a channel of its own
+     * @param vid vid
+     * @param isCdcAcm true then search only cdc-acm
+     * @param deviceName name of UsbDevice to open (null : first device which isn't opened)
+     * @return true : open successful, false : open fail
+     */
+    public boolean open(int vid, boolean isCdcAcm, String deviceName) {
+        if(mChannel >= 0) { close(); }
+        synchronized (mUsbAccess) { // other connections mustn't take the same device or channel
+            if(open(mUsbAccess.topology(), vid, isCdcAcm, deviceName)) {
+                return true;
+            }
+            // The snapshot may be stale, e.g. a device has re-enumerated as the bootloader
+            if(open(mUsbAccess.refreshTopology(), vid, isCdcAcm, deviceName)) {
+                return true;
+            }
+        }
         if(DEBUG_SHOW){ Log.d(TAG, "Cannot find VID:"+ vid); }
         return false;
     }
 
-    private UsbEndpoint getEndpoint(int devNum, int intfNum, int usbDir) {
-        UsbInterface intf = mUsbAccess.intface(devNum, intfNum);
-        if(intf == null) {return null;}
-
-        for(int i=0; i<intf.getEndpointCount(); i++) {
-            UsbEndpoint ep = mUsbAccess.endpoint(devNum, intfNum, i);
-            if(ep==null) return null;
-            if(ep.getDirection() == usbDir) {
-                return ep;
+    private boolean open(UsbTopology topology, int vid, boolean isCdcAcm, String deviceName) {
+        for(UsbTopology.Device dev : topology.find(vid)) {
+            if((deviceName != null && !deviceName.equals(dev.getName()))
+                    || mUsbAccess.deviceIsOpened(dev.getName())) {
+                continue;
             }
-        }
-        return null;
+            for(int intfNum=0; intfNum < dev.getInterfaceCount(); intfNum++) {
+
+                if( (isCdcAcm && (dev.getInterface(intfNum).getInterfaceClass() == UsbConstants.USB_CLASS_CDC_DATA))
+                        || !isCdcAcm) {
+                    int ch = mUsbAccess.freeChannel();
+                    if(mUsbAccess.openDevice(dev,intfNum,ch)) {
+                        if(DEBUG_SHOW){ Log.d(TAG, "Find VID:"+Integer.toHexString(dev.getVid())+", PID:"+Integer.toHexString(dev.getPid())+", DevNum:"+dev.getDevNum()+", IntfNum:"+intfNum+", Ch:"+ch); }
+                        mUsbConnectionEp.put(ch,new UsbCdcConnectionEp(mUsbAccess.connection(ch), dev.findEndpoint(intfNum, UsbConstants.USB_DIR_IN), dev.findEndpoint(intfNum, UsbConstants.USB_DIR_OUT)));
+                        mCdcAcmInterfaceNum = intfNum;
+                        mChannel = ch;
+                        return true;
+                    }
+                }// end of if
+            } // end of for
+        } //end of for
+        return false;
     }
 
     /**
-     * Closes devices
+     * Closes the device opened by this connection
      */
     public boolean close() {
         mUsbConnectionEp.clear();
-        return mUsbAccess.closeAll();
+        if(mChannel < 0) return false;
+        boolean ret = mUsbAccess.close(mChannel);
+        mChannel = -1;
+        return ret;
+    }
+
+    /**
+     * Gets the channel which this connection opened
+     * @return channel number (-1 : not opened)
+     */
+    public int getChannel() {
+        return mChannel;
     }
 
     /**
@@ -115,7 +137,7 @@ public class UsbCdcConnection {
      * @return UsbDeviceConnection or null
      */
     public UsbDeviceConnection getConnection() {
-        return getConnection(0);
+        return getConnection(mChannel);
     }
 
     /**
@@ -133,7 +155,7 @@ public class UsbCdcConnection {
      * @return UsbEndpoint or null
      */
     public UsbEndpoint getEndpointIn() {
-        return getEndpointIn(0);
+        return getEndpointIn(mChannel);
     }
 
     /**
@@ -151,7 +173,7 @@ public class UsbCdcConnection {
      * @return UsbEndpoint or null
      */
     public UsbEndpoint getEndpointOut() {
-        return getEndpointOut(0);
+        return getEndpointOut(mChannel);
     }
 
     /**
@@ -165,6 +187,25 @@ public class UsbCdcConnection {
         return con.endpointOut;
     }
 
+    /**
+     * Gets USB serial of the device
+     * @return serial, or empty string if none
+     */
+    public String getSerial() {
+        return getSerial(mChannel);
+    }
+
+    /**
+     * Gets USB serial of the device
+     * @param ch channel
+     * @return serial, or empty string if none
+     */
+    public String getSerial(int ch) {
+        if(mUsbConnectionEp.get(ch) == null) return "";
+        String serial = mUsbAccess.getSerial(ch);
+        return (serial != null) ? serial : "";
+    }
+
     class UsbCdcConnectionEp {
         public UsbDeviceConnection connection;
         public UsbEndpoint endpointIn;
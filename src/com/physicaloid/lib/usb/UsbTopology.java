@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.usb;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Immutable snapshot of attached devices, their interfaces and endpoints.
+ * It is built by one enumeration and indexed by device name and VID/PID.
+ * USB serial isn't included because UsbDevice can't tell it before API 21.
+ */
+public final class UsbTopology {
+
+    private static final List<Device> EMPTY = Collections.emptyList();
+
+    private final List<Device>                      mDevices;
+    private final HashMap<String, Device>           mByName;
+    private final HashMap<Integer, List<Device>>    mByVid;
+    private final HashMap<Integer, List<Device>>    mByVidPid;
+
+    /*
+     * A device with its interfaces and endpoints
+     */
+    public static final class Device {
+        private final UsbDevice         mDevice;
+        private final int               mDevNum;
+        private final UsbInterface[]    mInterfaces;
+        private final UsbEndpoint[][]   mEndpoints;
+
+        private Device(UsbDevice device, int devNum) {
+            mDevice = device;
+            mDevNum = devNum;
+            int intfCount = device.getInterfaceCount();
+            mInterfaces = new UsbInterface[intfCount];
+            mEndpoints = new UsbEndpoint[intfCount][];
+            for(int i=0; i<intfCount; i++) {
+                UsbInterface intf = device.getInterface(i);
+                mInterfaces[i] = intf;
+                int epCount = intf.getEndpointCount();
+                mEndpoints[i] = new UsbEndpoint[epCount];
+                for(int j=0; j<epCount; j++) {
+                    mEndpoints[i][j] = intf.getEndpoint(j);
+                }
+            }
+        }
+
+        public UsbDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * Gets the hierarchy device number
+         * @return device number
+         */
+        public int getDevNum() {
+            return mDevNum;
+        }
+
+        public int getVid() {
+            return mDevice.getVendorId();
+        }
+
+        public int getPid() {
+            return mDevice.getProductId();
+        }
+
+        public String getName() {
+            return mDevice.getDeviceName();
+        }
+
+        public int getInterfaceCount() {
+            return mInterfaces.length;
+        }
+
+        /**
+         * Gets UsbInterface by a hierarchy interface number
+         * @param intfNum hierarchy interface number
+         * @return UsbInterface or null
+         */
+        public UsbInterface getInterface(int intfNum) {
+            if(intfNum < 0 || intfNum >= mInterfaces.length) return null;
+            return mInterfaces[intfNum];
+        }
+
+        /**
+         * Gets UsbEndpoint by a hierarchy interface and endpoint number
+         * @param intfNum hierarchy interface number
+         * @param epNum hierarchy endpoint number
+         * @return UsbEndpoint or null
+         */
+        public UsbEndpoint getEndpoint(int intfNum, int epNum) {
+            if(intfNum < 0 || intfNum >= mEndpoints.length) return null;
+            UsbEndpoint[] endpoints = mEndpoints[intfNum];
+            if(epNum < 0 || epNum >= endpoints.length) return null;
+            return endpoints[epNum];
+        }
+
+        /**
+         * Gets the first UsbEndpoint of an interface in a direction
+         * @param intfNum hierarchy interface number
+         * @param usbDir UsbConstants.USB_DIR_IN or USB_DIR_OUT
+         * @return UsbEndpoint or null
+         */
+        public UsbEndpoint findEndpoint(int intfNum, int usbDir) {
+            if(intfNum < 0 || intfNum >= mEndpoints.length) return null;
+            for(UsbEndpoint ep : mEndpoints[intfNum]) {
+                if(ep != null && ep.getDirection() == usbDir) return ep;
+            }
+            return null;
+        }
+    }
+
+    private UsbTopology(List<Device> devices) {
+        mDevices = Collections.unmodifiableList(devices);
+        mByName = new HashMap<String, Device>();
+        mByVid = new HashMap<Integer, List<Device>>();
+        mByVidPid = new HashMap<Integer, List<Device>>();
+        for(Device dev : devices) {
+            mByName.put(dev.getName(), dev);
+            addTo(mByVid, dev.getVid(), dev);
+            addTo(mByVidPid, (dev.getVid() << 16) | dev.getPid(), dev);
+        }
+    }
+
+    /**
+     * Enumerates attached devices
+     * @param manager UsbManager (null : no device)
+     * @return snapshot
+     */
+    public static UsbTopology build(UsbManager manager) {
+        ArrayList<Device> devices = new ArrayList<Device>();
+        if(manager != null) {
+            int devNum = 0;
+            for(UsbDevice device : manager.getDeviceList().values()) {
+                devices.add(new Device(device, devNum++));
+            }
+        }
+        return new UsbTopology(devices);
+    }
+
+    private static void addTo(HashMap<Integer, List<Device>> map, int key, Device dev) {
+        List<Device> list = map.get(key);
+        if(list == null) {
+            list = new ArrayList<Device>();
+            map.put(key, list);
+        }
+        list.add(dev);
+    }
+
+    /**
+     * Gets all devices in hierarchy order
+     * @return unmodifiable list
+     */
+    public List<Device> getDevices() {
+        return mDevices;
+    }
+
+    public int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * Gets a device by a hierarchy device number
+     * @param devNum hierarchy device number
+     * @return Device or null
+     */
+    public Device get(int devNum) {
+        if(devNum < 0 || devNum >= mDevices.size()) return null;
+        return mDevices.get(devNum);
+    }
+
+    /**
+     * Gets a device by the name of UsbDevice
+     * @param name device name
+     * @return Device or null
+     */
+    public Device findByName(String name) {
+        return mByName.get(name);
+    }
+
+    /**
+     * Gets devices with VID
+     * @param vid
+     * @return unmodifiable list
+     */
+    public List<Device> find(int vid) {
+        List<Device> list = mByVid.get(vid);
+        return (list != null) ? Collections.unmodifiableList(list) : EMPTY;
+    }
+
+    /**
+     * Gets devices with VID and PID
+     * @param vid
+     * @param pid
+     * @return unmodifiable list
+     */
+    public List<Device> find(int vid, int pid) {
+        List<Device> list = mByVidPid.get((vid << 16) | pid);
+        return (list != null) ? Collections.unmodifiableList(list) : EMPTY;
+    }
+}
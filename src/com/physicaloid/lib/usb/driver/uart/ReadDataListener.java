@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.physicaloid.lib.usb.driver.uart;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Listener which receives data itself on the read thread
+ */
+public interface ReadDataListener {
+    /**
+     * Called with freshly received bytes
+     * @param data read-only view which is valid only while this call
+     */
+    public void onReadData(ByteBuffer data);
+}
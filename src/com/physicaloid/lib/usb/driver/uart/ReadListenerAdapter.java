@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.physicaloid.lib.usb.driver.uart;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Lets a size-only ReadListener receive data notifications.
+ * Received data is kept in the ring buffer for the listener to read later.
+ */
+public class ReadListenerAdapter implements ReadDataListener {
+
+    private ReadListener mListener;
+
+    public ReadListenerAdapter(ReadListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void onReadData(ByteBuffer data) {
+        mListener.onRead(data.remaining());
+    }
+}
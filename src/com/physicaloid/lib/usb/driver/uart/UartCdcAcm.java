@@ -23,6 +23,7 @@ import android.content.Context;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbConstants;
+import android.os.Build;
 import android.util.Log;
 
 import com.obnsoft.arduboyutil.BuildConfig;
@@ -30,8 +31,9 @@ import com.physicaloid.lib.framework.SerialCommunicator;
 import com.physicaloid.lib.usb.UsbCdcConnection;
 import com.physicaloid.misc.RingBuffer;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class UartCdcAcm extends SerialCommunicator{
     private static final String TAG = UartCdcAcm.class.getSimpleName();
@@ -39,12 +41,16 @@ public class UartCdcAcm extends SerialCommunicator{
     private static final boolean DEBUG_SHOW = BuildConfig.DEBUG && false;
 
     private UsbCdcConnection mUsbConnetionManager;
+    private String mDeviceName;
 
     private UartConfig mUartConfig;
     private static final int RING_BUFFER_SIZE       = 1024;
+    private static final int RING_BUFFER_MAX_SIZE   = 64 * 1024;
     private static final int USB_READ_BUFFER_SIZE   = 256;
-    private static final int USB_WRITE_BUFFER_SIZE  = 256;
-    private static final int USB_VID_ARDUINO        = 0x2341;
+    private static final int USB_READ_REQUEST_COUNT = 4;    // requests in flight (0 : synchronous)
+    private static final int USB_READ_REQUEST_PACKETS = 4;  // length of a request in packets
+    private static final int USB_WRITE_TRANSFER_PACKETS = 64;   // length of a transfer in packets
+    public static final int USB_VID_ARDUINO         = 0x2341;
     private static final int USB_REQUEST_TYPE =
             UsbConstants.USB_DIR_OUT | UsbConstants.USB_TYPE_CLASS | 0x01;
     private static final int USB_REQUESTID_SETLINECODING        = 0x20;
@@ -57,29 +63,47 @@ public class UartCdcAcm extends SerialCommunicator{
 
     private RingBuffer mBuffer;
 
-    private boolean mReadThreadStop = true;
+    private volatile boolean mReadThreadStop = true;
+    private volatile UsbReadEngine mReadEngine;
 
     private UsbDeviceConnection mConnection;
     private UsbEndpoint mEndpointIn;
     private UsbEndpoint mEndpointOut;
+    private int mWritePacketSize;
+    private int mWriteTransferSize;
+    private byte[] mWriteBuf;   // only for the devices which can't transfer from an offset
     private int mInterfaceNum;
 
     private boolean isOpened;
 
     public UartCdcAcm(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param context
+     * @param deviceName name of UsbDevice to open (null : first device which isn't opened)
+     */
+    public UartCdcAcm(Context context, String deviceName) {
         super(context);
+        mDeviceName = deviceName;
         mUsbConnetionManager = new UsbCdcConnection(context);
         mUartConfig = new UartConfig();
-        mBuffer = new RingBuffer(RING_BUFFER_SIZE);
+        mBuffer = new RingBuffer(RING_BUFFER_SIZE, RING_BUFFER_MAX_SIZE);
         isOpened = false;
     }
 
     @Override
     public boolean open() {
-        if (mUsbConnetionManager.open(USB_VID_ARDUINO, true)) {
+        if (mUsbConnetionManager.open(USB_VID_ARDUINO, true, mDeviceName)) {
             mConnection     = mUsbConnetionManager.getConnection();
             mEndpointIn     = mUsbConnetionManager.getEndpointIn();
             mEndpointOut    = mUsbConnetionManager.getEndpointOut();
+            mWritePacketSize = Math.max(mEndpointOut.getMaxPacketSize(), 1);
+            mWriteTransferSize = mWritePacketSize * USB_WRITE_TRANSFER_PACKETS;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                mWriteBuf = new byte[mWriteTransferSize];
+            }
             //mInterfaceNum   = mUsbConnetionManager.getCdcAcmInterfaceNum();
             mInterfaceNum   = 0; // Trick!!
             if (!init()) { /*return false;*/ } // Trick!!
@@ -104,36 +128,60 @@ public class UartCdcAcm extends SerialCommunicator{
         return mBuffer.get(buf, size);
     }
 
+    @Override
+    public int read(byte[] buf, int offset, int size) {
+        return mBuffer.get(buf, offset, size);
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int size, long timeoutNanos) {
+        return mBuffer.get(buf, offset, size, timeoutNanos);
+    }
+
     @Override
     public int write(byte[] buf, int size) {
+        return write(buf, 0, size);
+    }
+
+    @Override
+    public int write(byte[] buf, int offset, int size) {
         if(buf == null) { return 0; }
-        int offset = 0;
+        int end = offset + size;
         int write_size;
         int written_size;
-        byte[] wbuf = new byte[USB_WRITE_BUFFER_SIZE];
-
-        while (offset < size) {
-            write_size = USB_WRITE_BUFFER_SIZE;
-
-            if (offset + write_size > size) {
-                write_size = size - offset;
-            }
-            System.arraycopy(buf, offset, wbuf, 0, write_size);
-
-            written_size = mConnection.bulkTransfer(
-                    mEndpointOut, wbuf, write_size, USB_WRITE_TIMEOUT);
 
+        while (offset < end) {
+            write_size = Math.min(mWriteTransferSize, end - offset);
+            written_size = bulkTransferOut(buf, offset, write_size);
             if (written_size < 0) {
                 return -1;
             }
             offset += written_size;
         }
 
-        return offset;
+        // Terminate the transfer explicitly when it ends on a packet boundary
+        if (size > 0 && size % mWritePacketSize == 0) {
+            if (mConnection.bulkTransfer(mEndpointOut, buf, 0, USB_WRITE_TIMEOUT) < 0) {
+                return -1;
+            }
+        }
+        return size;
+    }
+
+    private int bulkTransferOut(byte[] buf, int offset, int length) {
+        if (mWriteBuf == null) {
+            return mConnection.bulkTransfer(mEndpointOut, buf, offset, length, USB_WRITE_TIMEOUT);
+        }
+        System.arraycopy(buf, offset, mWriteBuf, 0, length);
+        return mConnection.bulkTransfer(mEndpointOut, mWriteBuf, length, USB_WRITE_TIMEOUT);
     }
 
     private void stopRead() {
         mReadThreadStop = true;
+        UsbReadEngine engine = mReadEngine;
+        if (engine != null) {
+            engine.stop();
+        }
     }
 
     private void startRead() {
@@ -146,8 +194,12 @@ public class UartCdcAcm extends SerialCommunicator{
     private Runnable mLoop = new Runnable() {
         @Override
         public void run() {
+            if (runAsyncRead()) {
+                return;
+            }
             int len=0;
             byte[] rbuf = new byte[USB_READ_BUFFER_SIZE];
+            ByteBuffer rview = ByteBuffer.wrap(rbuf);
             while (!mReadThreadStop) {// this is the main loop for transferring
 
                 try {
@@ -158,14 +210,50 @@ public class UartCdcAcm extends SerialCommunicator{
                 }
 
                 if (len > 0) {
-                    mBuffer.add(rbuf, len);
-                    onRead(len);
+                    rview.clear();
+                    rview.limit(len);
+                    onReceived(rview);
                 }
 
             }
         } // end of run()
     }; // end of runnable
 
+    /**
+     * Reads with asynchronous requests until stopped
+     * @return true : stopped, false : not available (use synchronous reading)
+     */
+    private boolean runAsyncRead() {
+        UsbRequestInPipe pipe =
+                UsbRequestInPipe.open(mConnection, mEndpointIn, USB_READ_REQUEST_COUNT);
+        if (pipe == null) {
+            return false;
+        }
+        UsbReadEngine engine = new UsbReadEngine(pipe, USB_READ_REQUEST_COUNT,
+                USB_READ_REQUEST_PACKETS, new UsbReadEngine.Sink() {
+            @Override
+            public void onData(ByteBuffer data) {
+                onReceived(data);
+            }
+        });
+        boolean ret = false;
+        if (engine.start()) {
+            mReadEngine = engine;
+            if (!mReadThreadStop) {
+                ret = engine.run();
+            } else {
+                engine.stop();
+                ret = true;
+            }
+            mReadEngine = null;
+            if (!ret) {
+                Log.w(TAG, "Asynchronous read failed, fall back to synchronous read");
+            }
+        }
+        pipe.close();
+        return ret;
+    }
+
 
     /**
      * Sets Uart configurations
@@ -300,6 +388,19 @@ public class UartCdcAcm extends SerialCommunicator{
         return true;
     }
 
+    @Override
+    public String getSerial() {
+        return mUsbConnetionManager.getSerial();
+    }
+
+    /**
+     * Gets the name of UsbDevice which this communicator is bound to
+     * @return device name, or null if any device
+     */
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
     @Override
     public UartConfig getUartConfig() {
         return mUartConfig;
@@ -340,21 +441,77 @@ public class UartCdcAcm extends SerialCommunicator{
         mBuffer.clear();
     }
 
+    @Override
+    public void setBufferLimit(int maxSize, int overflowPolicy) {
+        mBuffer.setLimit(maxSize, overflowPolicy);
+    }
+
+    @Override
+    public long getDroppedBytes() {
+        return mBuffer.getDroppedLength();
+    }
+
+    @Override
+    public int getHighWaterMark() {
+        return mBuffer.getHighWaterMark();
+    }
+
     //////////////////////////////////////////////////////////
     // Listener for reading uart
     //////////////////////////////////////////////////////////
-    private List<ReadListener> uartReadListenerList
-        = new ArrayList<ReadListener>();
-    private boolean mStopReadListener = false;
+    private List<ReadDataListener> uartReadListenerList
+        = new CopyOnWriteArrayList<ReadDataListener>();
+    private volatile boolean mStopReadListener = false;
+    private volatile boolean mBypassBuffer = false;
+    private int mBufferHolds = 0;
 
     @Override
     public void addReadListener(ReadListener listener) {
+        uartReadListenerList.add(new ReadListenerAdapter(listener));
+        updateBypassBuffer();
+    }
+
+    @Override
+    public void addReadDataListener(ReadDataListener listener) {
         uartReadListenerList.add(listener);
+        updateBypassBuffer();
     }
 
     @Override
     public void clearReadListener() {
         uartReadListenerList.clear();
+        updateBypassBuffer();
+    }
+
+    @Override
+    public synchronized void holdBuffer() {
+        mBufferHolds++;
+        updateBypassBuffer();
+    }
+
+    @Override
+    public synchronized void releaseBuffer() {
+        if (mBufferHolds > 0) {
+            mBufferHolds--;
+        }
+        updateBypassBuffer();
+    }
+
+    /**
+     * Received data needn't be kept in the ring buffer
+     * while only data listeners are registered and nobody holds the buffer for read().
+     */
+    private synchronized void updateBypassBuffer() {
+        boolean hasDataListener = false;
+        boolean hasSizeListener = false;
+        for (ReadDataListener listener: uartReadListenerList) {
+            if (listener instanceof ReadListenerAdapter) {
+                hasSizeListener = true;
+            } else {
+                hasDataListener = true;
+            }
+        }
+        mBypassBuffer = hasDataListener && !hasSizeListener && mBufferHolds == 0;
     }
 
     @Override
@@ -367,10 +524,27 @@ public class UartCdcAcm extends SerialCommunicator{
         mStopReadListener = true;
     }
 
-    private void onRead(int size) {
+    private void onReceived(ByteBuffer data) {
+        int start = data.position();
+        int length = data.remaining();
+        int buffered = length;
+        if (!mBypassBuffer) {
+            buffered = mBuffer.add(data);
+            data.position(start);
+        }
         if(mStopReadListener) return;
-        for (ReadListener listener: uartReadListenerList) {
-            listener.onRead(size);
+        ByteBuffer view = null;
+        for (ReadDataListener listener: uartReadListenerList) {
+            int viewLength = (listener instanceof ReadListenerAdapter) ? buffered : length;
+            if (viewLength <= 0) {
+                continue;
+            }
+            if (view == null) {
+                view = data.asReadOnlyBuffer();
+            }
+            view.limit(start + viewLength);
+            view.position(start);
+            listener.onReadData(view);
         }
     }
     //////////////////////////////////////////////////////////
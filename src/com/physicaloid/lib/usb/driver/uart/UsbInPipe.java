@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.physicaloid.lib.usb.driver.uart;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Source of asynchronous IN transfers. This hides UsbRequest so that UsbReadEngine can be
+ * driven by a fake endpoint.
+ */
+public interface UsbInPipe {
+
+    /**
+     * Gets max packet size of the endpoint
+     * @return max packet size in bytes
+     */
+    public int getMaxPacketSize();
+
+    /**
+     * Queues an IN request
+     * @param slot request slot (0 to depth-1)
+     * @param buffer destination. Its position must be set to the received length on completion.
+     * @param length requested length
+     * @return true : queued, false : fail
+     */
+    public boolean queue(int slot, ByteBuffer buffer, int length);
+
+    /**
+     * Waits for a request to complete
+     * @return slot of the completed request, or -1 on error
+     */
+    public int waitCompletion();
+
+    /**
+     * Cancels all requests in flight
+     */
+    public void cancelAll();
+
+    /**
+     * Releases all requests
+     */
+    public void close();
+}
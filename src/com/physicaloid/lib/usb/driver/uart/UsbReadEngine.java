@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.physicaloid.lib.usb.driver.uart;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Keeps several asynchronous IN requests in flight and hands received data over
+ * in the order the requests were queued
+ */
+public class UsbReadEngine {
+
+    /*
+     * Receiver of data
+     */
+    public interface Sink {
+        /**
+         * Called on the read thread with received data
+         * @param data read-only while this call. It is reused after returning.
+         */
+        public void onData(ByteBuffer data);
+    }
+
+    private UsbInPipe       mPipe;
+    private Sink            mSink;
+    private ByteBuffer[]    mBuffers;
+    private boolean[]       mCompleted;
+    private int             mRequestLength;
+    private int             mNextSlot;
+    private volatile boolean mStop;
+
+    /**
+     * @param pipe source of IN transfers
+     * @param depth number of requests in flight
+     * @param packetsPerRequest length of a request in max packet size
+     * @param sink receiver of data
+     */
+    public UsbReadEngine(UsbInPipe pipe, int depth, int packetsPerRequest, Sink sink) {
+        mPipe = pipe;
+        mSink = sink;
+        mRequestLength = Math.max(pipe.getMaxPacketSize(), 1) * Math.max(packetsPerRequest, 1);
+        mBuffers = new ByteBuffer[Math.max(depth, 1)];
+        mCompleted = new boolean[mBuffers.length];
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(mRequestLength);
+        }
+    }
+
+    /**
+     * Queues all requests
+     * @return true : successful, false : fail
+     */
+    public boolean start() {
+        mStop = false;
+        mNextSlot = 0;
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i].clear();
+            mCompleted[i] = false;
+            if (!mPipe.queue(i, mBuffers[i], mRequestLength)) {
+                mPipe.cancelAll();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles completions until stop() is called. This blocks the calling thread.
+     * @return true : stopped, false : the pipe failed
+     */
+    public boolean run() {
+        while (!mStop) {
+            int slot = mPipe.waitCompletion();
+            if (mStop) {
+                break;
+            }
+            if (slot < 0 || slot >= mBuffers.length) {
+                mPipe.cancelAll();
+                return false;
+            }
+            mCompleted[slot] = true;
+
+            // Requests are re-queued in slot order, so slot order is the order of data.
+            while (mCompleted[mNextSlot]) {
+                int current = mNextSlot;
+                ByteBuffer buffer = mBuffers[current];
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    mSink.onData(buffer);
+                }
+                buffer.clear();
+                mCompleted[current] = false;
+                mNextSlot = (current + 1) % mBuffers.length;
+                if (mStop) {
+                    break;
+                }
+                if (!mPipe.queue(current, buffer, mRequestLength)) {
+                    mPipe.cancelAll();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops run() from another thread
+     */
+    public void stop() {
+        mStop = true;
+        mPipe.cancelAll();
+    }
+}
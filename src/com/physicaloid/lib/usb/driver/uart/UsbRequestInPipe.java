@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.physicaloid.lib.usb.driver.uart;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import java.nio.ByteBuffer;
+
+/*
+ * UsbInPipe on top of UsbRequest and UsbDeviceConnection.requestWait()
+ */
+class UsbRequestInPipe implements UsbInPipe {
+
+    private UsbDeviceConnection mConnection;
+    private UsbEndpoint         mEndpoint;
+    private UsbRequest[]        mRequests;
+    private boolean[]           mQueued;    // queued and not returned by requestWait() yet
+
+    private UsbRequestInPipe(UsbDeviceConnection connection, UsbEndpoint endpoint, int depth) {
+        mConnection = connection;
+        mEndpoint = endpoint;
+        mRequests = new UsbRequest[depth];
+        mQueued = new boolean[depth];
+    }
+
+    /**
+     * Initializes requests
+     * @param connection
+     * @param endpoint IN endpoint
+     * @param depth number of requests
+     * @return pipe, or null if requests can't be initialized
+     */
+    static UsbRequestInPipe open(UsbDeviceConnection connection, UsbEndpoint endpoint, int depth) {
+        if (connection == null || endpoint == null || depth <= 0) {
+            return null;
+        }
+        UsbRequestInPipe pipe = new UsbRequestInPipe(connection, endpoint, depth);
+        for (int i = 0; i < depth; i++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(connection, endpoint)) {
+                pipe.close();
+                return null;
+            }
+            request.setClientData(Integer.valueOf(i));
+            pipe.mRequests[i] = request;
+        }
+        return pipe;
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return mEndpoint.getMaxPacketSize();
+    }
+
+    @Override
+    public boolean queue(int slot, ByteBuffer buffer, int length) {
+        boolean ret = mRequests[slot].queue(buffer, length);
+        mQueued[slot] = ret;
+        return ret;
+    }
+
+    @Override
+    public int waitCompletion() {
+        UsbRequest request;
+        try {
+            request = mConnection.requestWait();
+        } catch (Exception e) {
+            return -1;
+        }
+        if (request == null) {
+            return -1;
+        }
+        int slot = slotOf(request);
+        if (slot >= 0) {
+            mQueued[slot] = false;
+        }
+        return slot;
+    }
+
+    @Override
+    public void cancelAll() {
+        for (UsbRequest request : mRequests) {
+            if (request != null) {
+                request.cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels the requests and collects them with requestWait() before releasing them,
+     * because the kernel may still use the buffer of a request which hasn't come back.
+     * This must be called on the thread which waits for completions.
+     */
+    @Override
+    public void close() {
+        cancelAll();
+        int pending = 0;
+        for (boolean queued : mQueued) {
+            if (queued) {
+                pending++;
+            }
+        }
+        while (pending > 0) {
+            UsbRequest request;
+            try {
+                request = mConnection.requestWait();
+            } catch (Exception e) {
+                break;
+            }
+            if (request == null) {
+                break; // e.g. the device is gone
+            }
+            int slot = slotOf(request);
+            if (slot >= 0 && mQueued[slot]) {
+                mQueued[slot] = false;
+                pending--;
+            }
+        }
+        for (int i = 0; i < mRequests.length; i++) {
+            if (mRequests[i] != null) {
+                mRequests[i].close();
+                mRequests[i] = null;
+            }
+        }
+    }
+
+    private int slotOf(UsbRequest request) {
+        Object slot = request.getClientData();
+        return (slot instanceof Integer) ? (Integer) slot : -1;
+    }
+}
@@ -23,34 +23,96 @@ import com.obnsoft.arduboyutil.BuildConfig;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Lock-free receive buffer for a single producer (USB read thread) and a single consumer.
+ * Data is stored in a chain of segments which grows up to a ceiling as the consumer falls
+ * behind. Each side publishes its progress through volatile fields after copying,
+ * so neither side takes a lock. Drained segments are recycled.
+ */
 public class RingBuffer{
     private static final String TAG = RingBuffer.class.getSimpleName();
 
     private static final boolean DEBUG_SHOW_ADD = BuildConfig.DEBUG && false;
     private static final boolean DEBUG_SHOW_GET = BuildConfig.DEBUG && false;
 
-    private int mRingBufSize;
-    private byte[] mRingBuf;
-    private int mAddIndex;     // top of data index
-    private int mGetIndex;     // tail of data index
+    /** Drops bytes which exceed the ceiling */
+    public static final int OVERFLOW_DROP   = 0;
+    /** Makes the producer wait for the consumer, and drops bytes after BLOCK_TIMEOUT_MSEC */
+    public static final int OVERFLOW_BLOCK  = 1;
+
+    private static final long BLOCK_TIMEOUT_MSEC = 1000;
+    private static final long BLOCK_PARK_NSEC = 1000 * 1000;
+    private static final long DROP_LOG_INTERVAL_NSEC = 1000L * 1000 * 1000;
+
+    private static class Segment {
+        final byte[] data;
+        volatile int limit;     // written only by the producer
+        int pos;                // used only by the consumer
+        volatile Segment next;  // linked by the producer
+
+        Segment(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final int mSegmentSize;
+    private volatile int mMaxSize;
+    private volatile int mOverflowPolicy;
+
+    private Segment mAddSegment;    // used only by the producer
+    private Segment mGetSegment;    // used only by the consumer
+    private final AtomicReference<Segment> mSpareSegment = new AtomicReference<Segment>();
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+
+    private volatile long mAddedLength;     // written only by the producer
+    private volatile long mGottenLength;    // written only by the consumer
+    private volatile long mDroppedLength;   // written only by the producer
+    private volatile int mHighWaterMark;    // written only by the producer
+    private long mDropLogNanos;             // used only by the producer
+    private long mDroppedSinceLog;          // used only by the producer
 
     /**
      * Ring buffer
      * @param bufferSize buffer size. It needs enough size e.g.1024
      */
     public RingBuffer(int bufferSize) {
-        mRingBufSize = bufferSize+1;
-        mRingBuf = new byte[mRingBufSize];
-        mAddIndex = 0;
-        mGetIndex = 0;
+        this(bufferSize, bufferSize);
+    }
+
+    /**
+     * Ring buffer which grows up to a ceiling
+     * @param bufferSize initial buffer size, which is also the unit of growth
+     * @param maxSize ceiling of buffered length
+     */
+    public RingBuffer(int bufferSize, int maxSize) {
+        mSegmentSize = Math.max(bufferSize, 1);
+        mMaxSize = Math.max(maxSize, mSegmentSize);
+        mOverflowPolicy = OVERFLOW_DROP;
+        mAddSegment = new Segment(mSegmentSize);
+        mGetSegment = mAddSegment;
+    }
+
+    /**
+     * Sets the ceiling and the behavior beyond it
+     * @param maxSize ceiling of buffered length
+     * @param overflowPolicy OVERFLOW_DROP or OVERFLOW_BLOCK
+     */
+    public void setLimit(int maxSize, int overflowPolicy) {
+        mMaxSize = Math.max(maxSize, mSegmentSize);
+        mOverflowPolicy = overflowPolicy;
     }
 
     /**
      * Gets ring buffer size
-     * @return ring buffer size
+     * @return ceiling of buffered length
      */
     public int getRingBufferSize() {
-        return mRingBufSize-1;
+        return mMaxSize;
     }
 
     /**
@@ -58,68 +120,89 @@ public class RingBuffer{
      * @return buffered length
      */
     public int getBufferdLength() {
-        if(mAddIndex >= mGetIndex) {
-            return mAddIndex - mGetIndex;
-        } else {
-            return mAddIndex + (mRingBufSize - mGetIndex);
-        }
+        long gottenLength = mGottenLength;
+        return (int) (mAddedLength - gottenLength);
+    }
+
+    /**
+     * Gets total length of bytes which were dropped because of the ceiling
+     * @return dropped length
+     */
+    public long getDroppedLength() {
+        return mDroppedLength;
+    }
+
+    /**
+     * Gets the largest buffered length which has been observed
+     * @return high-water mark
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
     }
 
     /**
-     * Adds byte array to ring buffer
+     * Adds byte array to ring buffer. Only the producer thread may call this.
      * @param buf byte array
      * @param length added length
      * @return actually added length
      */
-    public synchronized int add(byte[] buf, int length) {
-        int addLen = length;
+    public int add(byte[] buf, int length) {
+        return addImpl(buf, null, Math.min(length, buf.length));
+    }
 
-        if(mAddIndex > mGetIndex) {
-            if((mAddIndex + length) >= mRingBufSize) {                          // addした結果1周をまたぐ場合
-                if((mRingBufSize - mAddIndex) + (mGetIndex - 1) < length ) {    // 1周をまたいでなおlength以上になる場合
-                    addLen = (mRingBufSize - mAddIndex) + (mGetIndex-1);        // 追い抜かないサイズに修正
-                }
-            }
-        } else if(mAddIndex < mGetIndex){ // 1周をまたいでいる場合
-            if((mGetIndex - 1) - mAddIndex < length) {
-                addLen = (mGetIndex - 1) - mAddIndex;
-            }
-        }
+    /**
+     * Adds remaining bytes of ByteBuffer to ring buffer. Only the producer thread may call this.
+     * The position of src advances by the added length.
+     * @param src source buffer
+     * @return actually added length
+     */
+    public int add(ByteBuffer src) {
+        return addImpl(null, src, src.remaining());
+    }
 
-        if(buf.length < addLen) {
-            addLen = buf.length;
+    private int addImpl(byte[] buf, ByteBuffer src, int length) {
+        int free = mMaxSize - getBufferdLength();
+        if(free < length && mOverflowPolicy == OVERFLOW_BLOCK) {
+            free = waitForSpace(length);
+        }
+        int addLen = Math.max(Math.min(length, free), 0);
+        if(addLen < length) {
+            mDroppedLength += length - addLen;
+            logDropped(length - addLen);
         }
 
-        if((mAddIndex+addLen) >= mRingBufSize) { // storeがバッファ終端をまたぐ場合
-            int remain = mAddIndex + addLen - mRingBufSize;
-            int copyLen = addLen-remain;
-            if(copyLen != 0) {
-                System.arraycopy(buf, 0, mRingBuf, mAddIndex, copyLen);
-                if(DEBUG_SHOW_ADD){ Log.d(TAG,"add("+length+") : copy buf[0:"+(copyLen-1)+"] to mRingBuf["+mAddIndex+":"+(mAddIndex+copyLen-1)+"]"); }
+        int offset = 0;
+        while(offset < addLen) {
+            Segment seg = mAddSegment;
+            int limit = seg.limit;
+            int space = seg.data.length - limit;
+            if(space == 0) {
+                Segment next = obtainSegment();
+                seg.next = next;
+                mAddSegment = next;
+                continue;
             }
-
-            mAddIndex = 0;
-
-            if(remain != 0) {
-                System.arraycopy(buf, copyLen, mRingBuf, mAddIndex, remain);
-                if(DEBUG_SHOW_ADD){ Log.d(TAG,"add("+length+") : copy buf["+(copyLen)+":"+(addLen-1)+"] to mRingBuf[0:"+(remain-1)+"]"); }
-                mAddIndex = remain;
+            int copyLen = Math.min(space, addLen - offset);
+            if(src != null) {
+                src.get(seg.data, limit, copyLen);
+            } else {
+                System.arraycopy(buf, offset, seg.data, limit, copyLen);
             }
+            mAddedLength += copyLen; // counted before publishing, never behind mGottenLength
+            seg.limit = limit + copyLen; // publish after copying
+            offset += copyLen;
+        }
+        Thread consumer = mWaitingConsumer;
+        if(consumer != null) {
+            LockSupport.unpark(consumer);
+        }
 
-            if(DEBUG_SHOW_ADD){ Log.d(TAG,"add("+length+") : addOffset = "+mAddIndex+", getOffset = "+mGetIndex); }
-
-            return addLen;
-        } else {
-            System.arraycopy(buf, 0, mRingBuf, mAddIndex, addLen);
-
-            if(DEBUG_SHOW_ADD){ Log.d(TAG,"add("+length+") : copy buf[0:"+(addLen-1)+"] to mRingBuf["+mAddIndex+":"+(mAddIndex+addLen-1)+"]"); }
-
-            mAddIndex += addLen;
-
-            if(DEBUG_SHOW_ADD){ Log.d(TAG,"add("+length+") : addOffset = "+mAddIndex+", getOffset = "+mGetIndex);}
-
-            return addLen;
+        int buffered = getBufferdLength();
+        if(buffered > mHighWaterMark) {
+            mHighWaterMark = buffered;
         }
+        if(DEBUG_SHOW_ADD){ Log.d(TAG,"add("+length+") : added = "+addLen+", buffered = "+buffered); }
+        return addLen;
     }
 
     /**
@@ -128,62 +211,147 @@ public class RingBuffer{
      * @param length gotten length
      * @return actually gotten length
      */
-    public synchronized int get(byte[] buf, int length) {
-        int getLen = length;
-        if(mAddIndex == mGetIndex) {
-            return 0;
-        } else if(mGetIndex < mAddIndex) { // 通常
-            if(mAddIndex - mGetIndex < length) {  // get要求サイズがバッファされているサイズより大きい場合
-                getLen = mAddIndex - mGetIndex;     // 今バッファされているサイズを返す
-            }
-        } else {// インデックスが1周をまたいでいる場合
-            if(mAddIndex + (mRingBufSize-mGetIndex) < length) {     // get要求サイズがバッファされているサイズより大きい場合
-                getLen = mAddIndex + (mRingBufSize - mGetIndex);    // 今バッファされているサイズを返す
-            }
-        }
-
-        if(buf.length < getLen) {
-            getLen = buf.length;
-        }
+    public int get(byte[] buf, int length) {
+        return get(buf, 0, length);
+    }
 
-        if((mGetIndex+getLen) >= mRingBufSize) {
-            int remain = mGetIndex + getLen - mRingBufSize;
-            int copyLen = getLen - remain;
-            if( copyLen != 0) {
-                System.arraycopy(mRingBuf, mGetIndex, buf, 0, copyLen);
-                if(DEBUG_SHOW_GET){ Log.d(TAG,"get("+length+") : copy mRingBuf["+mGetIndex+":"+(mGetIndex+copyLen-1)+"] to buf[0:"+(copyLen-1)+"]"); }
-            }
+    /**
+     * Gets ring buffer to byte array from the specified position.
+     * Only the consumer thread may call this.
+     * @param buf byte array
+     * @param offset start position in buf
+     * @param length gotten length
+     * @return actually gotten length
+     */
+    public int get(byte[] buf, int offset, int length) {
+        int getLen = consume(buf, offset, Math.min(length, buf.length - offset));
+        if(DEBUG_SHOW_GET){ Log.d(TAG,"get("+length+") : gotten = "+getLen+", buffered = "+getBufferdLength()); }
+        return getLen;
+    }
 
-            mGetIndex = 0;
 
-            if(remain !=0) {
-                System.arraycopy(mRingBuf, mGetIndex, buf, copyLen, remain);
-                if(DEBUG_SHOW_GET){ Log.d(TAG,"get("+length+") : copy mRingBuf[0:"+(remain-1)+"] to buf["+copyLen+":"+(remain-1)+"]"); }
-                mGetIndex = remain;
+    /**
+     * Gets ring buffer to byte array, waiting until the length is filled or the timeout
+     * passes. Only the consumer thread may call this. It returns early when the thread
+     * is interrupted, leaving the interrupted status set.
+     * @param buf byte array
+     * @param offset start position in buf
+     * @param length gotten length
+     * @param timeoutNanos timeout in nanoseconds (0 : no wait)
+     * @return actually gotten length
+     */
+    public int get(byte[] buf, int offset, int length, long timeoutNanos) {
+        length = Math.min(length, buf.length - offset);
+        int total = consume(buf, offset, length);
+        if(total >= length || timeoutNanos <= 0) {
+            return total;
+        }
+        Thread current = Thread.currentThread();
+        long start = System.nanoTime();
+        mWaitingConsumer = current;
+        try {
+            while(true) {
+                total += consume(buf, offset + total, length - total);
+                if(total >= length || current.isInterrupted()) {
+                    break;
+                }
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                if(remaining <= 0) {
+                    break;
+                }
+                if(getBufferdLength() == 0) { // checked after publishing mWaitingConsumer
+                    LockSupport.parkNanos(this, remaining);
+                }
             }
+        } finally {
+            mWaitingConsumer = null;
+        }
+        if(DEBUG_SHOW_GET){ Log.d(TAG,"get("+length+", "+timeoutNanos+") : gotten = "+total); }
+        return total;
+    }
 
-            if(DEBUG_SHOW_GET){  Log.d(TAG,"get("+length+") : addOffset = "+mAddIndex+", getOffset = "+mGetIndex); }
-            return getLen;
-        } else {
-            System.arraycopy(mRingBuf, mGetIndex, buf, 0, getLen);
-
-            if(DEBUG_SHOW_GET){ Log.d(TAG,"get("+length+") : copy mRingBuf["+mGetIndex+":"+(mGetIndex+getLen-1)+"] to buf[0:"+(getLen-1)+"]");}
-
-            mGetIndex += getLen;
 
-            if(DEBUG_SHOW_GET){ Log.d(TAG,"get("+length+") : addOffset = "+mAddIndex+", getOffset = "+mGetIndex); }
+    /**
+     * Clear ring buffer. This discards buffered data from the consumer side,
+     * so it is safe while the producer is adding.
+     */
+    public void clear() {
+        consume(null, 0, Integer.MAX_VALUE);
+    }
 
-            return getLen;
+    /**
+     * Takes bytes out of the segments
+     * @param buf destination, or null to discard
+     */
+    private int consume(byte[] buf, int offset, int length) {
+        int total = 0;
+        Segment seg = mGetSegment;
+        while(total < length) {
+            int limit = seg.limit;
+            int available = limit - seg.pos;
+            if(available > 0) {
+                int copyLen = Math.min(available, length - total);
+                if(buf != null) {
+                    System.arraycopy(seg.data, seg.pos, buf, offset + total, copyLen);
+                }
+                seg.pos += copyLen;
+                total += copyLen;
+                continue;
+            }
+            Segment next = seg.next;
+            if(limit < seg.data.length || next == null) {
+                break; // the producer is still filling this segment
+            }
+            mGetSegment = next;
+            recycleSegment(seg);
+            seg = next;
+        }
+        if(total > 0) {
+            mGottenLength += total; // release the space after copying
+            Thread producer = mWaitingProducer;
+            if(producer != null) {
+                LockSupport.unpark(producer);
+            }
         }
+        return total;
     }
 
-
     /**
-     * Clear ring buffer
+     * Logs dropped bytes at most once per interval, because this is called at packet rate
+     * while the buffer overflows. getDroppedLength() tells the exact total.
      */
-    public synchronized void clear() {
-        mAddIndex = 0;
-        mGetIndex = 0;
+    private void logDropped(int length) {
+        mDroppedSinceLog += length;
+        long now = System.nanoTime();
+        if(mDropLogNanos != 0 && now - mDropLogNanos < DROP_LOG_INTERVAL_NSEC) {
+            return;
+        }
+        Log.w(TAG, "add() : dropped "+mDroppedSinceLog+" bytes");
+        mDropLogNanos = now;
+        mDroppedSinceLog = 0;
     }
 
+    private int waitForSpace(int length) {
+        long deadline = System.nanoTime() + BLOCK_TIMEOUT_MSEC * 1000 * 1000;
+        int free = mMaxSize - getBufferdLength();
+        mWaitingProducer = Thread.currentThread();
+        while(free < length && System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(this, BLOCK_PARK_NSEC);
+            free = mMaxSize - getBufferdLength();
+        }
+        mWaitingProducer = null;
+        return free;
+    }
+
+    private Segment obtainSegment() {
+        Segment seg = mSpareSegment.getAndSet(null);
+        return (seg != null) ? seg : new Segment(mSegmentSize);
+    }
+
+    private void recycleSegment(Segment seg) {
+        seg.pos = 0;
+        seg.next = null;
+        seg.limit = 0;
+        mSpareSegment.set(seg);
+    }
 }
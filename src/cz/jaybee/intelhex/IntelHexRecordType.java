@@ -1,62 +0,0 @@
-/**
- * @license
- * Copyright (c) 2012, Jan Breuer
- * All rights reserved.
- * 
- * Redistribution and use in source and binary forms, with or without
- * modification, are permitted provided that the following conditions are met:
- * 
- * * Redistributions of source code must retain the above copyright notice, this 
- * list of conditions and the following disclaimer.
- * 
- * * Redistributions in binary form must reproduce the above copyright notice,
- * this list of conditions and the following disclaimer in the documentation 
- * and/or other materials provided with the distribution.
- * 
- * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
- * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
- * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
- * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
- * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
- * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
- * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
- * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
- * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
- * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
- * POSSIBILITY OF SUCH DAMAGE.
- */
-package cz.jaybee.intelhex;
-
-/**
- *
- * @author Jan Breuer
- * @license BSD 2-Clause
- */
-public enum IntelHexRecordType {
-
-    DATA(0x00),
-    EOF(0x01),
-    EXT_SEG(0x02),
-    START_SEG(0x03),
-    EXT_LIN(0x04),
-    START_LIN(0x05),
-    UNKNOWN(0xFF);
-    int id;
-
-    IntelHexRecordType(int id) {
-        this.id = id;
-    }
-
-    public int toInt() {
-        return id;
-    }
-
-    public static IntelHexRecordType fromInt(int id) {
-        for (IntelHexRecordType d : IntelHexRecordType.values()) {
-            if (d.id == id) {
-                return d;
-            }
-        }
-        return IntelHexRecordType.UNKNOWN;
-    }
-}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib;
+
+import com.physicaloid.lib.framework.SerialCommunicator;
+import com.physicaloid.lib.usb.driver.uart.ReadDataListener;
+import com.physicaloid.lib.usb.driver.uart.ReadListener;
+import com.physicaloid.lib.usb.driver.uart.UartConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * ATmega32U4 running Caterina bootloader, emulated behind a serial port.
+ * Each write() carries whole AVR109 commands and the responses are ready to read at once.
+ */
+class FakeCaterinaDevice extends SerialCommunicator {
+
+    static final int FLASH_SIZE     = 32 * 1024;
+    static final int PAGE_SIZE      = 128;
+    static final int EEPROM_SIZE    = 1024;
+
+    private static final byte[] SOFTWARE_ID = "CATERIN".getBytes();
+    private static final byte[] SIGNATURE = { (byte) 0x87, (byte) 0x95, (byte) 0x1E };
+    private static final byte   RSP_SUCCESS = '\r';
+    private static final byte   RSP_UNKNOWN = '?';
+
+    private byte[]          mFlash = new byte[FLASH_SIZE];
+    private byte[]          mEeprom = new byte[EEPROM_SIZE];
+    private int             mAddress;   // in bytes
+    private byte[]          mResponse = new byte[0];
+    private int             mResponsePos;
+    private boolean         mIsOpened;
+    private boolean         mIsBootloaderExited;
+    private boolean         mRejectsBlockLoad;
+    private boolean         mFailsOpen;
+    private CyclicBarrier   mOpenBarrier;
+    private String          mOpenThread;
+    private UartConfig      mUartConfig = new UartConfig();
+
+    FakeCaterinaDevice() {
+        super(null);
+        Arrays.fill(mFlash, (byte) 0xFF);
+        Arrays.fill(mEeprom, (byte) 0xFF);
+    }
+
+    /**
+     * Makes block loads fail like a broken flash
+     */
+    void rejectBlockLoad() {
+        mRejectsBlockLoad = true;
+    }
+
+    /**
+     * Makes open() fail like a device which has been detached
+     */
+    void failOpen() {
+        mFailsOpen = true;
+    }
+
+    /**
+     * Makes open() wait until the other devices are opening at the same time
+     * @param barrier barrier shared by the devices
+     */
+    void setOpenBarrier(CyclicBarrier barrier) {
+        mOpenBarrier = barrier;
+    }
+
+    byte[] getFlash() {
+        return mFlash;
+    }
+
+    boolean isBootloaderExited() {
+        return mIsBootloaderExited;
+    }
+
+    String getOpenThread() {
+        return mOpenThread;
+    }
+
+    @Override
+    public boolean open() {
+        mOpenThread = Thread.currentThread().getName();
+        if (mFailsOpen) {
+            return false;
+        }
+        if (mOpenBarrier != null) {
+            try {
+                mOpenBarrier.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            } catch (BrokenBarrierException e) {
+                return false;
+            } catch (TimeoutException e) {
+                return false;
+            }
+        }
+        mIsOpened = true;
+        return true;
+    }
+
+    @Override
+    public boolean close() {
+        mIsOpened = false;
+        return true;
+    }
+
+    @Override
+    public int read(byte[] buf, int size) {
+        return read(buf, 0, size);
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int size) {
+        int length = Math.min(size, mResponse.length - mResponsePos);
+        System.arraycopy(mResponse, mResponsePos, buf, offset, length);
+        mResponsePos += length;
+        return length;
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int size, long timeoutNanos) {
+        return read(buf, offset, size); // nothing more arrives by waiting
+    }
+
+    @Override
+    public int write(byte[] buf, int size) {
+        return write(buf, 0, size);
+    }
+
+    @Override
+    public int write(byte[] buf, int offset, int size) {
+        if (!mIsOpened) {
+            return -1;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(mResponse, mResponsePos, mResponse.length - mResponsePos);
+        int pos = offset;
+        int end = offset + size;
+        while (pos < end) {
+            pos = execute(buf, pos, end, out);
+        }
+        mResponse = out.toByteArray();
+        mResponsePos = 0;
+        return size;
+    }
+
+    /**
+     * Executes a command and returns the position of the next one
+     */
+    private int execute(byte[] buf, int pos, int end, ByteArrayOutputStream out) {
+        byte cmd = buf[pos++];
+        switch (cmd) {
+        case 'S':
+            out.write(SOFTWARE_ID, 0, SOFTWARE_ID.length);
+            break;
+        case 'V':
+            out.write('1');
+            out.write('0');
+            break;
+        case 'p':
+            out.write('S');
+            break;
+        case 'a':
+            out.write('Y');
+            break;
+        case 'b':
+            out.write('Y');
+            out.write(PAGE_SIZE >> 8);
+            out.write(PAGE_SIZE & 0xFF);
+            break;
+        case 't':
+            out.write(0x44);
+            out.write(0);
+            break;
+        case 'T':
+            pos++;
+            out.write(RSP_SUCCESS);
+            break;
+        case 's':
+            out.write(SIGNATURE[2]);
+            out.write(SIGNATURE[1]);
+            out.write(SIGNATURE[0]);
+            break;
+        case 'P':
+        case 'L':
+            out.write(RSP_SUCCESS);
+            break;
+        case 'E':
+            mIsBootloaderExited = true;
+            out.write(RSP_SUCCESS);
+            break;
+        case 'e':
+            Arrays.fill(mFlash, (byte) 0xFF);
+            out.write(RSP_SUCCESS);
+            break;
+        case 'A':
+            mAddress = ((buf[pos] & 0xFF) << 8 | (buf[pos + 1] & 0xFF)) << 1;
+            pos += 2;
+            out.write(RSP_SUCCESS);
+            break;
+        case 'B': {
+            int length = (buf[pos] & 0xFF) << 8 | (buf[pos + 1] & 0xFF);
+            byte type = buf[pos + 2];
+            pos += 3;
+            if (mRejectsBlockLoad) {
+                out.write(RSP_UNKNOWN);
+            } else if (type == 'F') {
+                System.arraycopy(buf, pos, mFlash, mAddress, length);
+                mAddress += length;
+                out.write(RSP_SUCCESS);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    mEeprom[mAddress >> 1] = buf[pos + i];
+                    mAddress += 2;
+                }
+                out.write(RSP_SUCCESS);
+            }
+            pos += length;
+            break;
+        }
+        case 'g': {
+            int length = (buf[pos] & 0xFF) << 8 | (buf[pos + 1] & 0xFF);
+            byte type = buf[pos + 2];
+            pos += 3;
+            if (type == 'F') {
+                out.write(mFlash, mAddress, length);
+                mAddress += length;
+            } else {
+                for (int i = 0; i < length; i++) {
+                    out.write(mEeprom[mAddress >> 1]);
+                    mAddress += 2;
+                }
+            }
+            break;
+        }
+        default:
+            out.write(RSP_UNKNOWN);
+            break;
+        }
+        return pos;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return mIsOpened;
+    }
+
+    @Override
+    public boolean setUartConfig(UartConfig config) {
+        mUartConfig = config;
+        return true;
+    }
+
+    @Override
+    public boolean setBaudrate(int baudrate) {
+        mUartConfig.baudrate = baudrate;
+        return true;
+    }
+
+    @Override
+    public boolean setDataBits(int dataBits) {
+        mUartConfig.dataBits = dataBits;
+        return true;
+    }
+
+    @Override
+    public boolean setParity(int parity) {
+        mUartConfig.parity = parity;
+        return true;
+    }
+
+    @Override
+    public boolean setStopBits(int stopBits) {
+        mUartConfig.stopBits = stopBits;
+        return true;
+    }
+
+    @Override
+    public boolean setDtrRts(boolean dtrOn, boolean rtsOn) {
+        mUartConfig.dtrOn = dtrOn;
+        mUartConfig.rtsOn = rtsOn;
+        return true;
+    }
+
+    @Override
+    public UartConfig getUartConfig() {
+        return mUartConfig;
+    }
+
+    @Override
+    public int getBaudrate() {
+        return mUartConfig.baudrate;
+    }
+
+    @Override
+    public int getDataBits() {
+        return mUartConfig.dataBits;
+    }
+
+    @Override
+    public int getParity() {
+        return mUartConfig.parity;
+    }
+
+    @Override
+    public int getStopBits() {
+        return mUartConfig.stopBits;
+    }
+
+    @Override
+    public boolean getDtr() {
+        return mUartConfig.dtrOn;
+    }
+
+    @Override
+    public boolean getRts() {
+        return mUartConfig.rtsOn;
+    }
+
+    @Override
+    public void addReadListener(ReadListener listener) {
+    }
+
+    @Override
+    public void addReadDataListener(ReadDataListener listener) {
+    }
+
+    @Override
+    public void clearReadListener() {
+    }
+
+    @Override
+    public void holdBuffer() {
+    }
+
+    @Override
+    public void releaseBuffer() {
+    }
+
+    @Override
+    public void startReadListener() {
+    }
+
+    @Override
+    public void stopReadListener() {
+    }
+
+    @Override
+    public void clearBuffer() {
+        mResponse = new byte[0];
+        mResponsePos = 0;
+    }
+
+    @Override
+    public void setBufferLimit(int maxSize, int overflowPolicy) {
+    }
+
+    @Override
+    public long getDroppedBytes() {
+        return 0;
+    }
+
+    @Override
+    public int getHighWaterMark() {
+        return 0;
+    }
+
+    @Override
+    public String getSerial() {
+        return "";
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.physicaloid.lib.Physicaloid.ProcessCallBack;
+import com.physicaloid.lib.framework.SerialCommunicator;
+import com.physicaloid.lib.programmer.avr.AvrTask;
+import com.physicaloid.lib.programmer.avr.ProgramConfig;
+import com.physicaloid.lib.programmer.avr.TransferErrors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+public class FlashFarmTest {
+
+    private static final int DEVICE_COUNT = 3;
+    private static final int IMAGE_SIZE = 10 * FakeCaterinaDevice.PAGE_SIZE + 40;
+
+    /*
+     * Records the result reported to each device's callback
+     */
+    private static class ResultRecorder implements FlashFarm.CallBackFactory {
+        private TransferErrors[]    mErrors = new TransferErrors[DEVICE_COUNT];
+        private Boolean[]           mPostResults = new Boolean[DEVICE_COUNT];
+
+        @Override
+        public ProcessCallBack create(final int index, SerialCommunicator serial) {
+            return new ProcessCallBack() {
+                @Override
+                public void onPreProcess() {
+                }
+                @Override
+                public void onProcessing(AvrTask.Op operation, int value) {
+                }
+                @Override
+                public void onPostProcess(boolean success) {
+                    mPostResults[index] = success;
+                }
+                @Override
+                public void onCancel() {
+                }
+                @Override
+                public void onError(TransferErrors err) {
+                    mErrors[index] = err;
+                }
+            };
+        }
+    }
+
+    private static byte[] newImage() {
+        byte[] image = new byte[IMAGE_SIZE];
+        new Random(1).nextBytes(image);
+        return image;
+    }
+
+    private static List<FakeCaterinaDevice> newDevices() {
+        List<FakeCaterinaDevice> devices = new ArrayList<FakeCaterinaDevice>();
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            devices.add(new FakeCaterinaDevice());
+        }
+        return devices;
+    }
+
+    private static FlashFarm newFlashFarm(List<FakeCaterinaDevice> devices) {
+        FlashFarm flashFarm = new FlashFarm(new ArrayList<SerialCommunicator>(devices));
+        ProgramConfig config = new ProgramConfig();
+        config.verify = true;
+        flashFarm.setProgramConfig(config);
+        return flashFarm;
+    }
+
+    private static List<AvrTask> newUploadTasks(byte[] image) {
+        List<AvrTask> tasks = new ArrayList<AvrTask>();
+        tasks.add(new AvrTask(AvrTask.Op.UPLOAD_FLASH, new ByteArrayInputStream(image), false));
+        return tasks;
+    }
+
+    private static void assertFlashHas(FakeCaterinaDevice device, byte[] image) {
+        byte[] flash = device.getFlash();
+        assertArrayEquals(image, Arrays.copyOf(flash, image.length));
+        for (int i = image.length; i < flash.length; i++) {
+            assertEquals(0xFF, flash[i] & 0xFF);
+        }
+    }
+
+    @Test
+    public void programsAllDevicesOnThreadsOfTheirOwn() throws Exception {
+        List<FakeCaterinaDevice> devices = newDevices();
+        CyclicBarrier barrier = new CyclicBarrier(DEVICE_COUNT); // opens only if all run at once
+        for (FakeCaterinaDevice device : devices) {
+            device.setOpenBarrier(barrier);
+        }
+        byte[] image = newImage();
+        ResultRecorder recorder = new ResultRecorder();
+
+        boolean[] results = newFlashFarm(devices).run(newUploadTasks(image),
+                Boards.ARDUINO_LEONARD, recorder);
+
+        HashSet<String> threads = new HashSet<String>();
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            FakeCaterinaDevice device = devices.get(i);
+            assertTrue("device " + i, results[i]);
+            assertEquals(Boolean.TRUE, recorder.mPostResults[i]);
+            assertNull(recorder.mErrors[i]);
+            assertFlashHas(device, image);
+            assertTrue(device.isBootloaderExited());
+            assertFalse(device.isOpened()); // closed by the farm which opened it
+            threads.add(device.getOpenThread());
+        }
+        assertEquals(DEVICE_COUNT, threads.size());
+    }
+
+    @Test
+    public void oneFailingDeviceDoesNotStopOthers() throws Exception {
+        List<FakeCaterinaDevice> devices = newDevices();
+        devices.get(1).rejectBlockLoad();
+        byte[] image = newImage();
+        ResultRecorder recorder = new ResultRecorder();
+
+        boolean[] results = newFlashFarm(devices).run(newUploadTasks(image),
+                Boards.ARDUINO_LEONARD, recorder);
+
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertTrue(results[2]);
+        assertFlashHas(devices.get(0), image);
+        assertFlashHas(devices.get(2), image);
+        assertEquals(TransferErrors.OPERATION, recorder.mErrors[1]);
+        assertEquals(Boolean.FALSE, recorder.mPostResults[1]);
+        assertFalse(devices.get(1).isBootloaderExited());
+        assertFalse(devices.get(1).isOpened());
+    }
+
+    @Test
+    public void deviceWhichFailsToOpenReportsError() throws Exception {
+        List<FakeCaterinaDevice> devices = newDevices();
+        devices.get(2).failOpen();
+        byte[] image = newImage();
+        ResultRecorder recorder = new ResultRecorder();
+
+        boolean[] results = newFlashFarm(devices).run(newUploadTasks(image),
+                Boards.ARDUINO_LEONARD, recorder);
+
+        assertTrue(results[0]);
+        assertTrue(results[1]);
+        assertFalse(results[2]);
+        assertEquals(TransferErrors.OPEN_DEVICE, recorder.mErrors[2]);
+        assertNull(recorder.mPostResults[2]);
+    }
+
+    @Test
+    public void rejectsDownloadTasks() throws Exception {
+        List<FakeCaterinaDevice> devices = newDevices();
+        List<AvrTask> tasks = newUploadTasks(newImage());
+        tasks.add(new AvrTask(AvrTask.Op.DOWNLOAD_EEPROM, new ByteArrayOutputStream(), false));
+        try {
+            newFlashFarm(devices).run(tasks, Boards.ARDUINO_LEONARD, null);
+            fail("Download task is accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        for (FakeCaterinaDevice device : devices) {
+            assertNull(device.getOpenThread()); // no device is touched
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.programmer.avr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Speed of IntelHexWriter against the String.format encoder which it replaced.
+ * Run main() on a JVM. Each case is repeated after warm-up and the median is printed.
+ */
+public class IntelHexWriterBenchmark {
+
+    private static final int FLASH_DUMP_SIZE    = 28 * 1024;    // ATmega32U4 without bootloader
+    private static final int LARGE_IMAGE_SIZE   = 64 * 1024;    // limit of the old encoder
+    private static final int WARMUP_COUNT       = 100;
+    private static final int MEASURE_COUNT      = 51;
+
+    /*
+     * Encoder which is measured
+     */
+    private interface Encoder {
+        void encode(byte[] buf, OutputStream out) throws IOException;
+    }
+
+    private static final Encoder CURRENT = new Encoder() {
+        @Override
+        public void encode(byte[] buf, OutputStream out) throws IOException {
+            IntelHexWriter writer = new IntelHexWriter(out);
+            writer.write(0, buf, 0, buf.length);
+            writer.finish();
+        }
+    };
+
+    /*
+     * IntelHexFileToBuf.convert(byte[], OutputStream) before IntelHexWriter
+     */
+    private static final Encoder BASELINE = new Encoder() {
+        @Override
+        public void encode(byte[] buf, OutputStream os) throws IOException {
+            StringBuffer strBuf = new StringBuffer();
+            int addr = 0;
+            int totalLength = buf.length;
+            while (addr < totalLength) {
+                int length = Math.min(totalLength - addr, 16);
+                int checksum = length + (addr & 0xFF) + (addr >> 8 & 0xFF);
+                strBuf.append(String.format(":%02X%04X00", length, addr));
+                for (int i = 0; i < length; i++, addr++) {
+                    byte val = buf[addr];
+                    strBuf.append(String.format("%02X", val));
+                    checksum += val;
+                }
+                strBuf.append(String.format("%02X\n", -checksum & 0xFF));
+            }
+            strBuf.append(":00000001FF\n");
+            os.write(strBuf.toString().getBytes());
+        }
+    };
+
+    /**
+     * Measures an encoder
+     * @return median time in microseconds
+     */
+    private static double measure(Encoder encoder, byte[] image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.length * 3);
+        double[] results = new double[MEASURE_COUNT];
+        for (int i = -WARMUP_COUNT; i < MEASURE_COUNT; i++) {
+            out.reset();
+            long start = System.nanoTime();
+            encoder.encode(image, out);
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                results[i] = elapsed / 1e3;
+            }
+        }
+        Arrays.sort(results);
+        return results[MEASURE_COUNT / 2];
+    }
+
+    private static byte[] encode(Encoder encoder, byte[] image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(image, out);
+        return out.toByteArray();
+    }
+
+    private static void run(String name, int size) throws IOException {
+        byte[] image = new byte[size];
+        new Random(size).nextBytes(image);
+        if (!Arrays.equals(encode(BASELINE, image), encode(CURRENT, image))) {
+            throw new AssertionError("Encoders differ: " + name);
+        }
+        double baseline = measure(BASELINE, image);
+        double current = measure(CURRENT, image);
+        System.out.printf("%-12s %10.0f us %10.0f us %8.1fx%n",
+                name, baseline, current, baseline / current);
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.out.printf("%-12s %13s %13s %9s%n", "image", "baseline", "current", "speedup");
+        run("28 KB", FLASH_DUMP_SIZE);
+        run("64 KB", LARGE_IMAGE_SIZE);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.usb.driver.uart;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Scripted IN endpoint. Each completion fills the buffer of a queued slot with given data.
+ * waitCompletion() returns -1 when the script runs out.
+ */
+class FakeUsbInPipe implements UsbInPipe {
+
+    private static final int MAX_PACKET_SIZE = 64;
+
+    private ByteBuffer[]        mQueued;
+    private LinkedList<Integer> mSlots = new LinkedList<Integer>();
+    private LinkedList<byte[]>  mData = new LinkedList<byte[]>();
+    private List<Integer>       mQueueLog = new ArrayList<Integer>();
+    private int                 mQueueLimit = Integer.MAX_VALUE;
+    private int                 mCancelCount;
+
+    FakeUsbInPipe(int depth) {
+        mQueued = new ByteBuffer[depth];
+    }
+
+    /**
+     * Adds a completion to the script
+     * @param slot slot which completes
+     * @param data received data
+     */
+    void complete(int slot, String data) {
+        mSlots.add(slot);
+        mData.add(data.getBytes());
+    }
+
+    /**
+     * Makes queue() fail after a number of successful calls
+     * @param count number of calls which succeed
+     */
+    void failQueueAfter(int count) {
+        mQueueLimit = count;
+    }
+
+    List<Integer> getQueueLog() {
+        return mQueueLog;
+    }
+
+    int getCancelCount() {
+        return mCancelCount;
+    }
+
+    boolean isQueued(int slot) {
+        return mQueued[slot] != null;
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return MAX_PACKET_SIZE;
+    }
+
+    @Override
+    public boolean queue(int slot, ByteBuffer buffer, int length) {
+        if (mQueueLog.size() >= mQueueLimit) {
+            return false;
+        }
+        if (mQueued[slot] != null) {
+            throw new IllegalStateException("Slot " + slot + " is already queued");
+        }
+        mQueueLog.add(slot);
+        mQueued[slot] = buffer;
+        return true;
+    }
+
+    @Override
+    public int waitCompletion() {
+        if (mSlots.isEmpty()) {
+            return -1;
+        }
+        int slot = mSlots.removeFirst();
+        byte[] data = mData.removeFirst();
+        ByteBuffer buffer = mQueued[slot];
+        if (buffer == null) {
+            throw new IllegalStateException("Slot " + slot + " isn't queued");
+        }
+        mQueued[slot] = null;
+        buffer.put(data);
+        return slot;
+    }
+
+    @Override
+    public void cancelAll() {
+        mCancelCount++;
+        for (int i = 0; i < mQueued.length; i++) {
+            mQueued[i] = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        // do nothing
+    }
+}
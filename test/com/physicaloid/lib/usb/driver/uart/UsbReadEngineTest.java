@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.lib.usb.driver.uart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class UsbReadEngineTest {
+
+    /*
+     * Collects received data as a string, and stops the engine after a number of deliveries
+     */
+    private static class StringSink implements UsbReadEngine.Sink {
+        private StringBuilder   mReceived = new StringBuilder();
+        private UsbReadEngine   mEngine;
+        private int             mStopAfter = Integer.MAX_VALUE;
+        private int             mCount;
+
+        @Override
+        public void onData(ByteBuffer data) {
+            while (data.hasRemaining()) {
+                mReceived.append((char) data.get());
+            }
+            if (++mCount >= mStopAfter) {
+                mEngine.stop();
+            }
+        }
+    }
+
+    private static UsbReadEngine newEngine(FakeUsbInPipe pipe, int depth, StringSink sink) {
+        UsbReadEngine engine = new UsbReadEngine(pipe, depth, 1, sink);
+        sink.mEngine = engine;
+        return engine;
+    }
+
+    @Test
+    public void deliversOutOfOrderCompletionsInQueueOrder() {
+        FakeUsbInPipe pipe = new FakeUsbInPipe(3);
+        StringSink sink = new StringSink();
+        UsbReadEngine engine = newEngine(pipe, 3, sink);
+        sink.mStopAfter = 4;
+        pipe.complete(2, "C");
+        pipe.complete(0, "A");
+        pipe.complete(1, "B");
+        pipe.complete(0, "D");
+
+        assertTrue(engine.start());
+        assertTrue(engine.run());
+        assertEquals("ABCD", sink.mReceived.toString());
+        // slot 0 isn't re-queued after the delivery which stopped the engine
+        assertEquals(Arrays.asList(0, 1, 2, 0, 1, 2), pipe.getQueueLog());
+    }
+
+    @Test
+    public void holdsLaterSlotsUntilTheFirstCompletes() {
+        FakeUsbInPipe pipe = new FakeUsbInPipe(2);
+        StringSink sink = new StringSink();
+        UsbReadEngine engine = newEngine(pipe, 2, sink);
+        pipe.complete(1, "B");
+
+        assertTrue(engine.start());
+        assertFalse(engine.run()); // script runs out
+        assertEquals("", sink.mReceived.toString());
+        assertEquals(Arrays.asList(0, 1), pipe.getQueueLog());
+    }
+
+    @Test
+    public void skipsEmptyCompletions() {
+        FakeUsbInPipe pipe = new FakeUsbInPipe(2);
+        StringSink sink = new StringSink();
+        UsbReadEngine engine = newEngine(pipe, 2, sink);
+        sink.mStopAfter = 1;
+        pipe.complete(0, "");
+        pipe.complete(1, "B");
+
+        assertTrue(engine.start());
+        assertTrue(engine.run());
+        assertEquals("B", sink.mReceived.toString());
+        assertEquals(Arrays.asList(0, 1, 0), pipe.getQueueLog());
+    }
+
+    @Test
+    public void failsAndCancelsWhenRequeueFails() {
+        FakeUsbInPipe pipe = new FakeUsbInPipe(2);
+        StringSink sink = new StringSink();
+        UsbReadEngine engine = newEngine(pipe, 2, sink);
+        pipe.failQueueAfter(2);
+        pipe.complete(0, "A");
+        pipe.complete(1, "B");
+
+        assertTrue(engine.start());
+        assertFalse(engine.run());
+        assertEquals("A", sink.mReceived.toString());
+        assertEquals(1, pipe.getCancelCount());
+        assertFalse(pipe.isQueued(1));
+    }
+
+    @Test
+    public void failsAndCancelsWhenStartFails() {
+        FakeUsbInPipe pipe = new FakeUsbInPipe(3);
+        UsbReadEngine engine = newEngine(pipe, 3, new StringSink());
+        pipe.failQueueAfter(1);
+
+        assertFalse(engine.start());
+        assertEquals(1, pipe.getCancelCount());
+        assertFalse(pipe.isQueued(0));
+    }
+
+    @Test
+    public void failsAndCancelsOnCompletionError() {
+        FakeUsbInPipe pipe = new FakeUsbInPipe(2);
+        UsbReadEngine engine = newEngine(pipe, 2, new StringSink());
+
+        assertTrue(engine.start());
+        assertFalse(engine.run());
+        assertEquals(1, pipe.getCancelCount());
+    }
+
+    @Test
+    public void stopDuringDeliveryDeliversNoMoreAndDoesNotRequeue() {
+        FakeUsbInPipe pipe = new FakeUsbInPipe(3);
+        StringSink sink = new StringSink();
+        UsbReadEngine engine = newEngine(pipe, 3, sink);
+        sink.mStopAfter = 1;
+        pipe.complete(1, "B");
+        pipe.complete(0, "A"); // slots 0 and 1 become deliverable at once
+
+        assertTrue(engine.start());
+        assertTrue(engine.run());
+        assertEquals("A", sink.mReceived.toString());
+        assertEquals(Arrays.asList(0, 1, 2), pipe.getQueueLog());
+        assertEquals(1, pipe.getCancelCount());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(pipe.isQueued(i));
+        }
+    }
+
+    @Test
+    public void restartsAfterStop() {
+        FakeUsbInPipe pipe = new FakeUsbInPipe(2);
+        StringSink sink = new StringSink();
+        UsbReadEngine engine = newEngine(pipe, 2, sink);
+        sink.mStopAfter = 1;
+        pipe.complete(0, "A");
+        assertTrue(engine.start());
+        assertTrue(engine.run());
+
+        sink.mStopAfter = 2;
+        pipe.complete(0, "B");
+        assertTrue(engine.start());
+        assertTrue(engine.run());
+        assertEquals("AB", sink.mReceived.toString());
+        assertEquals(Arrays.asList(0, 1, 0, 1), pipe.getQueueLog());
+    }
+}
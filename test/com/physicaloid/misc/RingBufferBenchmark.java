@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2017 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.physicaloid.misc;
+
+import java.util.Arrays;
+
+/*
+ * Throughput of RingBuffer against the synchronized ring which it replaced.
+ * Run main() on a JVM. Each case is repeated after warm-up and the median is printed.
+ */
+public class RingBufferBenchmark {
+
+    private static final int BUFFER_SIZE    = 16 * 1024;
+    private static final int PACKET_SIZE    = 512;      // USB bulk transfer
+    private static final int READ_SIZE      = 64;       // e.g. console reads
+    private static final long STREAM_LENGTH = 256L * 1024 * 1024;
+    private static final long LOOP_LENGTH   = 1024L * 1024 * 1024;
+    private static final int WARMUP_COUNT   = 3;
+    private static final int MEASURE_COUNT  = 7;
+
+    /*
+     * Common face of the rings under test
+     */
+    private interface Ring {
+        int add(byte[] buf, int length);
+        int get(byte[] buf, int length);
+        int getFreeLength();
+    }
+
+    private static class CurrentRing implements Ring {
+        private RingBuffer mBuffer = new RingBuffer(BUFFER_SIZE);
+
+        @Override
+        public int add(byte[] buf, int length) {
+            return mBuffer.add(buf, length);
+        }
+        @Override
+        public int get(byte[] buf, int length) {
+            return mBuffer.get(buf, length);
+        }
+        @Override
+        public int getFreeLength() {
+            return mBuffer.getRingBufferSize() - mBuffer.getBufferdLength();
+        }
+    }
+
+    /*
+     * RingBuffer before it became lock-free (debug logs removed)
+     */
+    private static class BaselineRing implements Ring {
+        private int mRingBufSize = BUFFER_SIZE + 1;
+        private byte[] mRingBuf = new byte[mRingBufSize];
+        private int mAddIndex;
+        private int mGetIndex;
+
+        @Override
+        public int getFreeLength() {
+            int buffered = (mAddIndex >= mGetIndex)
+                    ? mAddIndex - mGetIndex : mAddIndex + (mRingBufSize - mGetIndex);
+            return mRingBufSize - 1 - buffered;
+        }
+
+        @Override
+        public synchronized int add(byte[] buf, int length) {
+            int addLen = length;
+            if(mAddIndex > mGetIndex) {
+                if((mAddIndex + length) >= mRingBufSize) {
+                    if((mRingBufSize - mAddIndex) + (mGetIndex - 1) < length ) {
+                        addLen = (mRingBufSize - mAddIndex) + (mGetIndex-1);
+                    }
+                }
+            } else if(mAddIndex < mGetIndex){
+                if((mGetIndex - 1) - mAddIndex < length) {
+                    addLen = (mGetIndex - 1) - mAddIndex;
+                }
+            }
+            if(buf.length < addLen) {
+                addLen = buf.length;
+            }
+            if((mAddIndex+addLen) >= mRingBufSize) {
+                int remain = mAddIndex + addLen - mRingBufSize;
+                int copyLen = addLen-remain;
+                if(copyLen != 0) {
+                    System.arraycopy(buf, 0, mRingBuf, mAddIndex, copyLen);
+                }
+                mAddIndex = 0;
+                if(remain != 0) {
+                    System.arraycopy(buf, copyLen, mRingBuf, mAddIndex, remain);
+                    mAddIndex = remain;
+                }
+                return addLen;
+            } else {
+                System.arraycopy(buf, 0, mRingBuf, mAddIndex, addLen);
+                mAddIndex += addLen;
+                return addLen;
+            }
+        }
+
+        @Override
+        public synchronized int get(byte[] buf, int length) {
+            int getLen = length;
+            if(mAddIndex == mGetIndex) {
+                return 0;
+            } else if(mGetIndex < mAddIndex) {
+                if(mAddIndex - mGetIndex < length) {
+                    getLen = mAddIndex - mGetIndex;
+                }
+            } else {
+                if(mAddIndex + (mRingBufSize-mGetIndex) < length) {
+                    getLen = mAddIndex + (mRingBufSize - mGetIndex);
+                }
+            }
+            if(buf.length < getLen) {
+                getLen = buf.length;
+            }
+            if((mGetIndex+getLen) >= mRingBufSize) {
+                int remain = mGetIndex + getLen - mRingBufSize;
+                int copyLen = getLen - remain;
+                if( copyLen != 0) {
+                    System.arraycopy(mRingBuf, mGetIndex, buf, 0, copyLen);
+                }
+                mGetIndex = 0;
+                if(remain !=0) {
+                    System.arraycopy(mRingBuf, mGetIndex, buf, copyLen, remain);
+                    mGetIndex = remain;
+                }
+                return getLen;
+            } else {
+                System.arraycopy(mRingBuf, mGetIndex, buf, 0, getLen);
+                mGetIndex += getLen;
+                return getLen;
+            }
+        }
+    }
+
+    /*
+     * Case which is measured on a fresh ring
+     */
+    private interface Case {
+        /**
+         * @return checksum of the data which went through the ring
+         */
+        long run(Ring ring) throws InterruptedException;
+    }
+
+    /*
+     * Adds a packet and reads it back in small pieces on one thread
+     */
+    private static final Case LOOP = new Case() {
+        @Override
+        public long run(Ring ring) {
+            byte[] packet = newPacket();
+            byte[] buf = new byte[READ_SIZE];
+            long sum = 0;
+            for (long done = 0; done < LOOP_LENGTH; done += PACKET_SIZE) {
+                ring.add(packet, PACKET_SIZE);
+                for (int i = 0; i < PACKET_SIZE; i += READ_SIZE) {
+                    ring.get(buf, READ_SIZE);
+                    sum += buf[0];
+                }
+            }
+            return sum;
+        }
+    };
+
+    /*
+     * Streams packets from a producer thread to a consumer thread like UartCdcAcm
+     */
+    private static final Case STREAM = new Case() {
+        @Override
+        public long run(final Ring ring) throws InterruptedException {
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] packet = newPacket();
+                    for (long done = 0; done < STREAM_LENGTH; done += PACKET_SIZE) {
+                        while (ring.getFreeLength() < PACKET_SIZE) {
+                            Thread.yield();
+                        }
+                        ring.add(packet, PACKET_SIZE);
+                    }
+                }
+            });
+            producer.start();
+            byte[] buf = new byte[READ_SIZE];
+            long sum = 0;
+            long done = 0;
+            while (done < STREAM_LENGTH) {
+                int length = ring.get(buf, READ_SIZE);
+                if (length == 0) {
+                    Thread.yield();
+                    continue;
+                }
+                for (int i = 0; i < length; i++) {
+                    sum += buf[i];
+                }
+                done += length;
+            }
+            producer.join();
+            return sum;
+        }
+    };
+
+    private static byte[] newPacket() {
+        byte[] packet = new byte[PACKET_SIZE];
+        for (int i = 0; i < PACKET_SIZE; i++) {
+            packet[i] = (byte) i;
+        }
+        return packet;
+    }
+
+    /**
+     * Measures a case
+     * @return median throughput in MB/s
+     */
+    private static double measure(Case benchmarkCase, boolean isCurrent, long length)
+            throws InterruptedException {
+        double[] results = new double[MEASURE_COUNT];
+        for (int i = -WARMUP_COUNT; i < MEASURE_COUNT; i++) {
+            Ring ring = isCurrent ? new CurrentRing() : new BaselineRing();
+            long start = System.nanoTime();
+            long sum = benchmarkCase.run(ring);
+            long elapsed = System.nanoTime() - start;
+            if (sum == 0) {
+                throw new AssertionError("No data went through");
+            }
+            if (i >= 0) {
+                results[i] = length * 1e3 / elapsed / 1.024 / 1.024; // MiB/s
+            }
+        }
+        Arrays.sort(results);
+        return results[MEASURE_COUNT / 2];
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.printf("%-8s %12s %12s%n", "case", "baseline", "current");
+        System.out.printf("%-8s %8.0f MB/s %7.0f MB/s%n", "loop",
+                measure(LOOP, false, LOOP_LENGTH), measure(LOOP, true, LOOP_LENGTH));
+        System.out.printf("%-8s %8.0f MB/s %7.0f MB/s%n", "stream",
+                measure(STREAM, false, STREAM_LENGTH), measure(STREAM, true, STREAM_LENGTH));
+    }
+}